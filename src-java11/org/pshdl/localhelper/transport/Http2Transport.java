@@ -0,0 +1,511 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper.transport;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.WebSocket;
+import java.net.http.WebSocketHandshakeException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.pshdl.localhelper.Execution;
+
+/**
+ * The transport over the HTTP client of Java 11. All requests and the event
+ * stream are multiplexed over a single HTTP/2 connection per server, with
+ * <code>https</code> it is negotiated by ALPN, with <code>http</code> by an
+ * upgrade of the first request. Servers that do not speak HTTP/2 are served
+ * over pooled HTTP/1.1 connections.
+ */
+public class Http2Transport implements ITransport {
+
+    private static final String GZIP = "gzip";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final ExecutorService pumps = Execution.newExecutor("Http2Transport");
+
+    private final Endpoints endpoints;
+    private HttpClient client;
+
+    public Http2Transport(Endpoints endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    @Override
+    public String getName() {
+        return "http2";
+    }
+
+    @Override
+    public Endpoints getEndpoints() {
+        return endpoints;
+    }
+
+    private synchronized HttpClient getClient() {
+        if (client == null) {
+            client = HttpClient.newBuilder()//
+                    .version(HttpClient.Version.HTTP_2)//
+                    .connectTimeout(CONNECT_TIMEOUT)//
+                    .followRedirects(HttpClient.Redirect.NORMAL)//
+                    .executor(pumps)//
+                    .build();
+        }
+        return client;
+    }
+
+    /**
+     * The client can not be closed before Java 21, its connections are closed
+     * once it is no longer referenced
+     */
+    @Override
+    public synchronized void close() {
+        client = null;
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return getClient().send(request, handler);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + request.uri(), e);
+        }
+    }
+
+    private String getString(String url) throws IOException {
+        final HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(url)).GET().build(), BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("Request for " + url + " failed with status:" + response.statusCode());
+        }
+        return response.body();
+    }
+
+    @Override
+    public String getClientID(String wid) throws IOException {
+        return getString(endpoints.getStreamingURL(wid) + "/clientID");
+    }
+
+    @Override
+    public long getServerTime() throws IOException {
+        return Long.parseLong(getString(endpoints.getServerTimeURL()).trim());
+    }
+
+    @Override
+    public String getJSON(String url, Map<String, String> query, boolean acceptGzip) throws IOException {
+        final HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(Endpoints.withQuery(url, query))).header("Accept", "application/json");
+        if (acceptGzip) {
+            request.header("Accept-Encoding", GZIP);
+        }
+        final HttpResponse<InputStream> response = send(request.GET().build(), BodyHandlers.ofInputStream());
+        try (InputStream is = decode(response)) {
+            if (response.statusCode() == 404) {
+                return null;
+            }
+            if (response.statusCode() != 200) {
+                throw new IOException("Request for " + url + " failed with status:" + response.statusCode());
+            }
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static InputStream decode(HttpResponse<InputStream> response) throws IOException {
+        if (GZIP.equalsIgnoreCase(response.headers().firstValue("Content-Encoding").orElse(null))) {
+            return new GZIPInputStream(response.body(), BUFFER_SIZE);
+        }
+        return response.body();
+    }
+
+    @Override
+    public Result postMessage(String wid, String clientID, byte[] message) throws IOException {
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(endpoints.getStreamingURL(wid) + "/" + clientID))//
+                .header("Content-Type", "application/json")//
+                .POST(BodyPublishers.ofByteArray(message)).build();
+        return toResult(send(request, BodyHandlers.ofString()), 204);
+    }
+
+    @Override
+    public Result delete(String wid, String relPath) throws IOException {
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(endpoints.getWorkspaceURL(wid) + "/delete/" + encodePath(relPath)))//
+                .header("Accept", "text/plain")//
+                .DELETE().build();
+        return toResult(send(request, BodyHandlers.ofString()), 200);
+    }
+
+    private static String encodePath(String relPath) throws IOException {
+        try {
+            return new URI(null, null, relPath, null).getRawPath();
+        } catch (final URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static Result toResult(HttpResponse<String> response, int expected) {
+        final int status = response.statusCode();
+        return new Result(status, status == expected ? null : response.body());
+    }
+
+    /**
+     * The disposition is written the way Jersey writes it, the server reads
+     * the modification date from it
+     */
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    @Override
+    public Result upload(String wid, File file, String name, Map<String, String> fields, boolean compress) throws IOException {
+        final String boundary = "Boundary_" + UUID.randomUUID().toString().replace("-", "");
+        final StringBuilder head = new StringBuilder();
+        head.append("--").append(boundary).append("\r\n");
+        head.append("Content-Type: application/octet-stream\r\n");
+        head.append("Content-Disposition: form-data; filename=\"").append(name).append("\"; modification-date=\"")
+                .append(HTTP_DATE.format(Instant.ofEpochMilli(file.lastModified()))).append("\"; size=").append(file.length()).append("; name=\"file\"\r\n\r\n");
+        final StringBuilder tail = new StringBuilder();
+        for (final Entry<String, String> e : fields.entrySet()) {
+            tail.append("\r\n--").append(boundary).append("\r\n");
+            tail.append("Content-Type: text/plain\r\n");
+            tail.append("Content-Disposition: form-data; name=\"").append(e.getKey()).append("\"\r\n\r\n");
+            tail.append(e.getValue());
+        }
+        tail.append("\r\n--").append(boundary).append("--\r\n");
+        final byte[] headBytes = head.toString().getBytes(StandardCharsets.UTF_8);
+        final byte[] tailBytes = tail.toString().getBytes(StandardCharsets.UTF_8);
+        final HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(endpoints.getWorkspaceURL(wid)))//
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)//
+                .header("Accept", "text/plain");
+        if (compress) {
+            request.header("Content-Encoding", GZIP);
+        }
+        request.POST(BodyPublishers.ofInputStream(() -> {
+            try {
+                final InputStream body = new SequenceInputStream(Collections.enumeration(
+                        List.of(new ByteArrayInputStream(headBytes), new FileInputStream(file), new ByteArrayInputStream(tailBytes))));
+                return compress ? gzip(body) : body;
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }));
+        return toResult(send(request.build(), BodyHandlers.ofString()), 201);
+    }
+
+    /**
+     * Compresses the stream on a pump thread while it is read
+     */
+    private static InputStream gzip(InputStream raw) throws IOException {
+        final PipedInputStream result = new PipedInputStream(BUFFER_SIZE);
+        final PipedOutputStream pipe = new PipedOutputStream(result);
+        pumps.execute(() -> {
+            try (InputStream in = raw; GZIPOutputStream out = new GZIPOutputStream(pipe, BUFFER_SIZE)) {
+                in.transferTo(out);
+            } catch (final IOException e) {
+                // The reader is gone, the request failed
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public Download download(URL url, boolean acceptGzip) throws IOException {
+        final HttpRequest.Builder request;
+        try {
+            request = HttpRequest.newBuilder(url.toURI());
+        } catch (final URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if (acceptGzip) {
+            request.header("Accept-Encoding", GZIP);
+        }
+        final HttpResponse<InputStream> response = send(request.GET().build(), BodyHandlers.ofInputStream());
+        return new Download() {
+            @Override
+            public int getStatus() {
+                return response.statusCode();
+            }
+
+            @Override
+            public InputStream getStream() throws IOException {
+                return decode(response);
+            }
+
+            @Override
+            public void close() throws IOException {
+                response.body().close();
+            }
+        };
+    }
+
+    @Override
+    public IEventStream subscribe(String wid, String clientID, IEventHandler handler) throws IOException {
+        final HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(endpoints.getStreamingURL(wid) + "/" + clientID + "/sse"))//
+                .header("Accept", "text/event-stream");
+        final String lastEventId = handler.getLastEventId();
+        if (lastEventId != null) {
+            request.header("Last-Event-ID", lastEventId);
+        }
+        final EventStream stream = new EventStream(handler);
+        getClient().sendAsync(request.GET().build(), BodyHandlers.ofInputStream()).whenComplete((response, error) -> {
+            if (error != null) {
+                System.out.println("Http2Transport.subscribe() Failed to open the event stream: " + error);
+                stream.open = false;
+            } else if (response.statusCode() != 200) {
+                System.out.println("Http2Transport.subscribe() Failed to open the event stream, status was: " + response.statusCode());
+                stream.open = false;
+                try {
+                    response.body().close();
+                } catch (final IOException e) {
+                }
+            } else {
+                stream.read(response.body());
+            }
+        });
+        return stream;
+    }
+
+    /**
+     * Parses the server sent events of the stream. Comments are skipped, an
+     * event is dispatched at the blank line that ends it.
+     */
+    private static final class EventStream implements IEventStream {
+        private final IEventHandler handler;
+        private volatile boolean open = true;
+        private volatile InputStream body;
+
+        private EventStream(IEventHandler handler) {
+            this.handler = handler;
+        }
+
+        private void read(InputStream body) {
+            this.body = body;
+            if (!open) {
+                close();
+                return;
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+                String id = null;
+                StringBuilder data = null;
+                boolean hasEvent = false;
+                String line;
+                while (open && ((line = reader.readLine()) != null)) {
+                    if (line.isEmpty()) {
+                        if (hasEvent) {
+                            handler.onEvent(id, data != null ? data.toString() : "");
+                        }
+                        id = null;
+                        data = null;
+                        hasEvent = false;
+                        continue;
+                    }
+                    if (line.startsWith(":")) {
+                        continue;
+                    }
+                    final int colon = line.indexOf(':');
+                    final String field = colon == -1 ? line : line.substring(0, colon);
+                    String value = colon == -1 ? "" : line.substring(colon + 1);
+                    if (value.startsWith(" ")) {
+                        value = value.substring(1);
+                    }
+                    if ("data".equals(field)) {
+                        data = data == null ? new StringBuilder(value) : data.append('\n').append(value);
+                        hasEvent = true;
+                    } else if ("id".equals(field)) {
+                        id = value;
+                        hasEvent = true;
+                    }
+                }
+            } catch (final IOException e) {
+                // Closed or connection lost, the watchdog takes care of it
+            } finally {
+                open = false;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            final InputStream is = body;
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (final IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * The channel is a WebSocket. The client of Java 11 opens it with an
+     * upgrade of an HTTP/1.1 connection, so it does not share the HTTP/2
+     * connection of the other requests.
+     */
+    @Override
+    public IFrameSocket openChannel(String wid, String clientID, String lastEventId, IFrameListener listener) throws IOException {
+        final URI uri = URI.create(endpoints.getChannelURL(wid, clientID));
+        final WebSocket.Builder builder = getClient().newWebSocketBuilder().connectTimeout(CONNECT_TIMEOUT);
+        if (lastEventId != null) {
+            builder.header("Last-Event-ID", lastEventId);
+        }
+        final Channel channel = new Channel(listener);
+        try {
+            channel.start(builder.buildAsync(uri, channel).get());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while opening " + uri, e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof WebSocketHandshakeException) {
+                final int status = ((WebSocketHandshakeException) e.getCause()).getResponse().statusCode();
+                System.out.println("Http2Transport.openChannel() The server refused the channel, status was: " + status);
+                return null;
+            }
+            throw new IOException("Failed to open " + uri, e.getCause());
+        }
+        return channel;
+    }
+
+    /**
+     * Sends are chained, as a WebSocket only accepts the next frame once the
+     * previous one was sent. The next frame is requested once the listener
+     * returned.
+     */
+    private static final class Channel implements WebSocket.Listener, IFrameSocket {
+        private final IFrameListener listener;
+        private final StringBuilder partial = new StringBuilder();
+        private volatile boolean open = true;
+        private WebSocket socket;
+        private CompletableFuture<WebSocket> sending;
+
+        private Channel(IFrameListener listener) {
+            this.listener = listener;
+        }
+
+        private synchronized void start(WebSocket socket) {
+            this.socket = socket;
+            sending = CompletableFuture.completedFuture(socket);
+            socket.request(1);
+        }
+
+        @Override
+        public void onOpen(WebSocket socket) {
+            // Frames are requested once the channel is started
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket socket, CharSequence data, boolean last) {
+            partial.append(data);
+            if (last) {
+                final String frame = partial.toString();
+                partial.setLength(0);
+                listener.onFrame(this, frame);
+            }
+            socket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onPing(WebSocket socket, ByteBuffer message) {
+            listener.onPing();
+            return WebSocket.Listener.super.onPing(socket, message);
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket socket, int statusCode, String reason) {
+            open = false;
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket socket, Throwable error) {
+            System.out.println("Http2Transport.Channel.onError() The channel failed: " + error);
+            open = false;
+        }
+
+        @Override
+        public synchronized void sendText(String frame) {
+            if (!open) {
+                return;
+            }
+            sending = sending.thenCompose(socket -> socket.sendText(frame, true));
+            sending.whenComplete((socket, error) -> {
+                if (error != null) {
+                    open = false;
+                }
+            });
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!open) {
+                socket.abort();
+                return;
+            }
+            open = false;
+            sending.thenCompose(ws -> ws.sendClose(WebSocket.NORMAL_CLOSURE, "")).whenComplete((ws, error) -> {
+                if (error != null) {
+                    socket.abort();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A content addressed store of files keyed by their SHA-1. It is located in
+ * the users home and shared by all workspaces, so files that exist in more
+ * than one workspace only need to be downloaded once. The store is bounded in
+ * size, the least recently used files are evicted first.
+ * <p>
+ * Blobs are read only copies. Workspace files are never linked to a blob, as
+ * the user, the compiler and the synthesis overwrite them in place, which
+ * would change the blob of every workspace that shares it.
+ */
+public class BlobStore {
+
+    private static final long MB = 1024 * 1024;
+    private static BlobStore defaultStore;
+
+    private final Path dir;
+    private final long maxSize;
+    /**
+     * The known blobs in access order, mapped to their size
+     */
+    private final LinkedHashMap<String, Long> blobs = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    public static synchronized BlobStore getDefault() {
+        if (defaultStore == null) {
+            final String property = System.getProperty("PSHDL_BLOB_DIR");
+            final File dir = property != null ? new File(property) : new File(System.getProperty("user.home"), ".pshdl" + File.separator + "blobs");
+            defaultStore = new BlobStore(dir.toPath(), Long.getLong("PSHDL_BLOB_CACHE_MB", 512) * MB);
+        }
+        return defaultStore;
+    }
+
+    public BlobStore(Path dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        if (maxSize > 0) {
+            scan();
+        }
+    }
+
+    private void scan() {
+        final List<Path> files = Lists.newArrayList();
+        try {
+            Files.createDirectories(dir);
+            try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(dir)) {
+                for (final Path prefix : prefixes) {
+                    if (Files.isDirectory(prefix)) {
+                        try (DirectoryStream<Path> entries = Files.newDirectoryStream(prefix)) {
+                            for (final Path entry : entries) {
+                                if (!entry.getFileName().toString().startsWith(".")) {
+                                    files.add(entry);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            System.out.println("BlobStore.scan() Failed to read the blob store at " + dir + ": " + e);
+        }
+        // The modification time is the closest thing to an access time that
+        // is available
+        Collections.sort(files, new Comparator<Path>() {
+            @Override
+            public int compare(Path o1, Path o2) {
+                return Long.compare(o1.toFile().lastModified(), o2.toFile().lastModified());
+            }
+        });
+        synchronized (this) {
+            for (final Path file : files) {
+                final long length = file.toFile().length();
+                blobs.put(file.getParent().getFileName().toString() + file.getFileName().toString(), length);
+                size += length;
+            }
+            evict();
+        }
+    }
+
+    private Path blobPath(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Creates the target as a writable copy of the stored content
+     *
+     * @param hash
+     *            the SHA-1 of the content
+     * @param target
+     *            the file to create or replace
+     * @return <code>false</code> if the content is not in the store
+     */
+    public boolean materialize(String hash, Path target) throws IOException {
+        if (!isEnabled()) {
+            return false;
+        }
+        hash = hash.toLowerCase();
+        synchronized (this) {
+            if (blobs.get(hash) == null) {
+                return false;
+            }
+        }
+        final Path blob = blobPath(hash);
+        final Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".part");
+        try {
+            try {
+                Files.copy(blob, temp, StandardCopyOption.REPLACE_EXISTING);
+            } catch (final NoSuchFileException e) {
+                // Evicted by another process
+                forget(hash);
+                return false;
+            }
+            // The copy has the permissions of the read only blob
+            temp.toFile().setWritable(true);
+            // Marks the blob as recently used for the next scan
+            blob.toFile().setLastModified(System.currentTimeMillis());
+            move(temp, target);
+            return true;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Adds a copy of the file to the store, if it is not already present. The
+     * file itself is not changed. The caller has to ensure that the hash
+     * matches the content.
+     */
+    public void add(Path file, String hash) {
+        if (!isEnabled()) {
+            return;
+        }
+        hash = hash.toLowerCase();
+        synchronized (this) {
+            if (blobs.get(hash) != null) {
+                return;
+            }
+        }
+        final Path blob = blobPath(hash);
+        Path temp = null;
+        try {
+            Files.createDirectories(blob.getParent());
+            temp = Files.createTempFile(blob.getParent(), ".", ".part");
+            Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING);
+            temp.toFile().setReadOnly();
+            move(temp, blob);
+            final long length = blob.toFile().length();
+            synchronized (this) {
+                if (blobs.put(hash, length) == null) {
+                    size += length;
+                }
+                evict();
+            }
+        } catch (final IOException e) {
+            System.out.println("BlobStore.add() Failed to add " + file + ": " + e);
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (final IOException e) {
+                }
+            }
+        }
+    }
+
+    private synchronized void forget(String hash) {
+        final Long length = blobs.remove(hash);
+        if (length != null) {
+            size -= length;
+        }
+    }
+
+    private void evict() {
+        for (final Iterator<Entry<String, Long>> iterator = blobs.entrySet().iterator(); (size > maxSize) && iterator.hasNext();) {
+            final Entry<String, Long> entry = iterator.next();
+            final Path blob = blobPath(entry.getKey());
+            try {
+                Files.deleteIfExists(blob);
+            } catch (final IOException e) {
+                System.out.println("BlobStore.evict() Failed to delete " + blob + ": " + e);
+            }
+            size -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -32,6 +32,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.pshdl.localhelper.PSSyncCommandLine.Configuration;
 import org.pshdl.localhelper.WorkspaceHelper.IWorkspaceListener;
@@ -46,6 +50,7 @@ import org.pshdl.rest.models.RepoInfo;
 public class ConfigureInvoker implements MessageHandler<FileRecord> {
 
     private final ConnectionHelper ch;
+    private final WorkspaceHelper wh;
     private final Configuration config;
     private static String OS = System.getProperty("os.name").toLowerCase();
     public static File FPGA_PROGRAMMER = new File(System.getProperty("FPGA_PROGRAMMER", getExecutableName()));
@@ -57,15 +62,16 @@ public class ConfigureInvoker implements MessageHandler<FileRecord> {
         return "fpga_programmer";
     }
 
-    public ConfigureInvoker(ConnectionHelper ch, Configuration config) {
+    public ConfigureInvoker(ConnectionHelper ch, WorkspaceHelper wh, Configuration config) {
         this.ch = ch;
+        this.wh = wh;
         this.config = config;
     }
 
     @Override
     public void handle(Message<FileRecord> msg, IWorkspaceListener listener, File workspaceDir, String workspaceID, RepoInfo repo) throws Exception {
         final FileRecord record = WorkspaceHelper.getContent(msg, FileRecord.class);
-        final File datFile = new File(workspaceDir, record.relPath);
+        final File datFile = wh.ensureLocal(record.relPath);
         final String datAbsolutePath = datFile.getAbsolutePath();
         if (!datFile.exists()) {
             listener.doLog(Severity.ERROR, "Unable to program file:" + record.relPath + " because it can not be found locally:" + datAbsolutePath);
@@ -90,26 +96,33 @@ public class ConfigureInvoker implements MessageHandler<FileRecord> {
         final Process process = processBuilder.start();
         final InputStream is = process.getInputStream();
         final StringBuilder sb = new StringBuilder();
-        new Thread((Runnable) () -> {
-            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
-                String line = null;
-                double progressCounter = progress;
-                final String absolutePath = synDir.getAbsolutePath();
-                while ((line = reader.readLine()) != null) {
-                    line = line.replace(absolutePath, "");
-                    sb.append(line).append('\n');
-                    if (line.startsWith("#!>")) {
-                        sendMessage(ProgressType.progress, progressCounter, line.substring(3));
-                        progressCounter += 0.15;
+        try (Execution.Scope scope = Execution.openScope()) {
+            final Future<?> outputLogger = scope.fork(() -> {
+                try (final BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+                    String line = null;
+                    double progressCounter = progress;
+                    final String absolutePath = synDir.getAbsolutePath();
+                    while ((line = reader.readLine()) != null) {
+                        line = line.replace(absolutePath, "");
+                        sb.append(line).append('\n');
+                        if (line.startsWith("#!>")) {
+                            sendMessage(ProgressType.progress, progressCounter, line.substring(3));
+                            progressCounter += 0.15;
+                        }
+                        System.out.println(line);
                     }
-                    System.out.println(line);
+                } catch (final IOException e) {
+                    e.printStackTrace();
                 }
-            } catch (final IOException e) {
-                e.printStackTrace();
+                return null;
+            });
+            if (!waitOrTerminate(process, timeOutMinutes)) {
+                sendMessage(ProgressType.error, null, "Consumed more than " + timeOutMinutes + " minutes for " + stage);
+            }
+            try {
+                outputLogger.get(10, TimeUnit.SECONDS);
+            } catch (final ExecutionException | TimeoutException e) {
             }
-        }, "OutputLogger").start();
-        if (!waitOrTerminate(process, timeOutMinutes)) {
-            sendMessage(ProgressType.error, null, "Consumed more than " + timeOutMinutes + " minutes for " + stage);
         }
         if (!sb.toString().trim().isEmpty()) {
             sendMessage(ProgressType.output, null, sb.toString());
@@ -124,20 +137,7 @@ public class ConfigureInvoker implements MessageHandler<FileRecord> {
     }
 
     public boolean waitOrTerminate(final Process synProcess, int waitTime) throws InterruptedException {
-        boolean done = false;
-        for (int i = 0; i < (60 * waitTime); i++) {
-            try {
-                synProcess.exitValue();
-                done = true;
-                break;
-            } catch (final Exception e) {
-            }
-            Thread.sleep(1000);
-        }
-        if (!done) {
-            synProcess.destroy();
-        }
-        return done;
+        return SynthesisInvoker.waitOrTerminate(synProcess, waitTime);
     }
 
 }
@@ -28,33 +28,42 @@ package org.pshdl.localhelper;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Date;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Formatter;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
-
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.client.Entity;
-import javax.ws.rs.client.WebTarget;
-import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
-
-import org.glassfish.jersey.apache.connector.ApacheConnector;
-import org.glassfish.jersey.client.ClientConfig;
-import org.glassfish.jersey.media.multipart.FormDataBodyPart;
-import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
-import org.glassfish.jersey.media.multipart.FormDataMultiPart;
-import org.glassfish.jersey.media.multipart.MultiPartFeature;
-import org.glassfish.jersey.media.sse.EventSource;
-import org.glassfish.jersey.media.sse.InboundEvent;
-import org.glassfish.jersey.media.sse.SseFeature;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.pshdl.localhelper.TransferScheduler.Priority;
 import org.pshdl.localhelper.WorkspaceHelper.FileOp;
 import org.pshdl.localhelper.WorkspaceHelper.IWorkspaceListener;
 import org.pshdl.localhelper.WorkspaceHelper.Severity;
+import org.pshdl.localhelper.transport.Endpoints;
+import org.pshdl.localhelper.transport.ITransport;
+import org.pshdl.localhelper.transport.ITransport.Download;
+import org.pshdl.localhelper.transport.ITransport.IEventHandler;
+import org.pshdl.localhelper.transport.ITransport.IEventStream;
+import org.pshdl.localhelper.transport.ITransport.Result;
+import org.pshdl.localhelper.transport.MessageChannel;
 import org.pshdl.rest.models.CompileInfo;
 import org.pshdl.rest.models.FileInfo;
 import org.pshdl.rest.models.Message;
@@ -64,19 +73,27 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
-import com.google.common.io.ByteStreams;
-import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class ConnectionHelper {
 
     private final IWorkspaceListener listener;
     private final WorkspaceHelper wh;
-    protected Client client;
-    protected String clientID;
-    private final boolean secure;
-    private static final ObjectReader repoReader = JSONHelper.getReader(RepoInfo.class);
+    protected final ITransport transport;
+    private final Endpoints endpoints;
+    /**
+     * Whether the helper is connected or trying to reconnect
+     */
+    private volatile boolean open;
+    protected volatile String clientID;
+    private final BlobStore blobStore = BlobStore.getDefault();
+    private final SharedResources resources;
+    private final TransferScheduler transfers;
     private static final ObjectReader messageReader = JSONHelper.getReader(Message.class);
     private static final ObjectWriter writer = JSONHelper.getWriter();
 
@@ -84,74 +101,175 @@ public class ConnectionHelper {
         CONNECTING, CONNECTED, CLOSED, RECONNECT, ERROR
     }
 
-    public ConnectionHelper(IWorkspaceListener listener, WorkspaceHelper wh, boolean secure) {
+    public ConnectionHelper(IWorkspaceListener listener, WorkspaceHelper wh, boolean secure, SharedResources resources) {
         super();
         this.listener = listener;
         this.wh = wh;
-        this.secure = secure;
+        this.resources = resources;
+        this.endpoints = new Endpoints(SERVER, secure);
+        this.transport = resources.getTransport(endpoints);
+        this.transfers = resources.getTransferScheduler(endpoints);
     }
 
-    public void downloadFile(File localFile, FileOp op, long lastModified, String name) {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Files smaller than this are not worth compressing
+     */
+    private static final int COMPRESSION_THRESHOLD = Integer.getInteger("PSHDL_COMPRESSION_THRESHOLD", 1024);
+    private volatile boolean compressTransfers = !Boolean.getBoolean("PSHDL_NO_COMPRESSION");
+
+    /**
+     * Downloads the file into a temporary file next to the target while
+     * computing its SHA-1. Only if the hash matches the expected one the
+     * temporary file is moved over the target, so an interrupted or corrupted
+     * transfer never leaves a truncated file behind.
+     *
+     * @param expectedHash
+     *            the SHA-1 of the remote file, or <code>null</code> if it is
+     *            not known
+     */
+    public void downloadFile(File localFile, FileOp op, long lastModified, String name, String expectedHash) {
+        Path temp = null;
         try {
-            URL url;
-            if (name.charAt(0) != '/') {
-                url = new URL(getURL(wh.getWorkspaceID(), false, secure) + "/" + name + "?plain=true");
-            } else {
-                url = new URL((secure ? "https://" : "http://") + SERVER + name + "?plain=true");
+            final URL url = endpoints.getFileURL(wh.getWorkspaceID(), name);
+            final Path target = localFile.toPath();
+            final boolean derived = target.startsWith(new File(wh.getWorkspaceFolder(), "src-gen").toPath());
+            if ((expectedHash != null) && blobStore.materialize(expectedHash, target)) {
+                System.out.println("WorkspaceHelper.downloadFile() Using stored blob for " + url);
+                if (!localFile.setLastModified(lastModified)) {
+                    listener.doLog(Severity.ERROR, "Failed to update modification timestamp on file:" + localFile);
+                }
+                wh.getHashIndex().put(localFile, expectedHash);
+                listener.fileOperation(op, localFile);
+                return;
             }
             System.out.println("WorkspaceHelper.downloadFile()" + url);
-            try (final InputStream os = url.openStream()) {
-                ByteStreams.copy(os, Files.newOutputStreamSupplier(localFile));
+            temp = Files.createTempFile(target.getParent(), "." + localFile.getName(), ".part");
+            final Path part = temp;
+            final Hasher hasher = Hashing.sha1().newHasher();
+            final Priority priority = derived ? Priority.DERIVED : Priority.SOURCE;
+            // The time of a download depends on its size, which is not known
+            // before the response arrives
+            final int status = transfers.execute(priority, TransferScheduler.UNKNOWN_SIZE, () -> {
+                // Whether a response is worth compressing is up to the server
+                try (final Download download = transport.download(url, compressTransfers)) {
+                    final int responseCode = download.getStatus();
+                    if (responseCode != 200) {
+                        return responseCode;
+                    }
+                    final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    try (final ReadableByteChannel in = Channels.newChannel(download.getStream());
+                            final FileChannel out = FileChannel.open(part, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            hasher.putBytes(buffer.array(), 0, buffer.position());
+                            buffer.flip();
+                            while (buffer.hasRemaining()) {
+                                out.write(buffer);
+                            }
+                            buffer.clear();
+                            transfers.throttle(priority, read);
+                        }
+                    }
+                    return responseCode;
+                }
+            }, ConnectionHelper::isOverloaded);
+            if (status != 200) {
+                listener.doLog(Severity.ERROR, "Failed to download file:" + url + " status was:" + status);
+                return;
+            }
+            final String hash = hasher.hash().toString();
+            if ((expectedHash != null) && !expectedHash.equalsIgnoreCase(hash)) {
+                listener.doLog(Severity.ERROR, "Downloaded file " + localFile + " has hash " + hash + " but " + expectedHash + " was expected, discarding the download");
+                return;
             }
-            if (!localFile.setLastModified(lastModified)) {
+            if (!temp.toFile().setLastModified(lastModified)) {
                 listener.doLog(Severity.ERROR, "Failed to update modification timestamp on file:" + localFile);
             }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            wh.getHashIndex().put(localFile, hash);
+            blobStore.add(target, hash);
             listener.fileOperation(op, localFile);
         } catch (final Exception e) {
             listener.doLog(e);
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (final IOException e) {
+                    listener.doLog(e);
+                }
+            }
         }
     }
 
     public void closeConnection() {
-        if (client != null) {
-            client.close();
-            if (eventSource != null) {
-                eventSource.close();
+        stopWatchdog();
+        if (open) {
+            open = false;
+            if (eventStream != null) {
+                eventStream.close();
+            }
+            eventStream = null;
+            final MessageChannel messageChannel = channel;
+            if (messageChannel != null) {
+                channel = null;
+                final int dropped = messageChannel.shutdown().size();
+                if (dropped != 0) {
+                    listener.doLog(Severity.INFO, "Dropped " + dropped + " messages that were not acknowledged by the server");
+                }
+            }
+            if (!resources.isShared()) {
+                try {
+                    transport.close();
+                } catch (final IOException e) {
+                    listener.doLog(e);
+                }
             }
-            client = null;
-            eventSource = null;
             listener.connectionStatus(Status.CLOSED);
         }
     }
 
+    /**
+     * Sends the message over the channel if there is one, this does not wait
+     * for the message to be sent. Otherwise it is posted.
+     */
     public <T> void postMessage(String subject, String type, T content) throws IOException {
         final Message<T> message = new Message<>(type, subject, content, clientID);
+        final MessageChannel messageChannel = channel;
+        if ((messageChannel != null) && messageChannel.send(message)) {
+            return;
+        }
+        post(message);
+    }
+
+    private void post(Object message) throws IOException {
         final byte[] bytes = writer.writeValueAsBytes(message);
-        final Client client = createClient(false);
-        final Response response = client.target(getURL(wh.getWorkspaceID(), true, secure)).path(clientID).request().post(Entity.entity(bytes, MediaType.APPLICATION_JSON));
-        final int status = response.getStatus();
+        final Result result = transfers.execute(Priority.MESSAGE, bytes.length, () -> transport.postMessage(wh.getWorkspaceID(), clientID, bytes),
+                ConnectionHelper::isOverloaded);
+        final int status = result.status;
         if (status != 204) {
             listener.doLog(Severity.ERROR, "Failed post message:" + new String(bytes, StandardCharsets.UTF_8) + " status was:" + status);
         }
     }
 
     public boolean isConnected() {
-        if ((client == null) || (eventSource == null)) {
+        final IEventStream stream = eventStream;
+        if (!open || (stream == null)) {
             return false;
         }
-        return eventSource.isOpen();
+        return stream.isOpen();
     }
 
-    public String getURL(String workspaceID, boolean streaming, boolean secure) {
-        final String protocol = secure ? "https://" : "http://";
-        final String result;
+    public String getURL(String workspaceID, boolean streaming) {
         if (streaming) {
-            result = protocol + SERVER + "/api/v0.1/streaming/workspace/" + workspaceID.toUpperCase();
-        } else {
-            result = protocol + SERVER + "/api/v0.1/workspace/" + workspaceID.toUpperCase();
+            return endpoints.getStreamingURL(workspaceID);
         }
-        return result;
-
+        return endpoints.getWorkspaceURL(workspaceID);
     }
 
     private static String getServer() {
@@ -162,44 +280,137 @@ public class ConnectionHelper {
         return "api.pshdl.org";
     }
 
+    /**
+     * Connects in the background. The client ID is only needed for the
+     * stream, so it is requested while the files are synchronized. The clock
+     * offset to the server is measured afterwards, and only if enabled.
+     */
     public void connectTo(final String wid) throws IOException {
-        new Thread((Runnable) () -> {
+        final long start = System.nanoTime();
+        Execution.start("connect", () -> {
             try {
                 listener.connectionStatus(Status.CONNECTING);
-                client = createClient(true);
-                clientID = getClientID(wid, client);
-                estimateServerDelta();
-                final RepoInfo repo = getRepoInfo(wid, client);
-                wh.handleRepoInfo(repo);
-                for (final FileInfo fi : repo.getFiles()) {
-                    wh.handleFileInfo(fi);
+                open = true;
+                try (Execution.Scope scope = Execution.openScope()) {
+                    final Future<String> id = scope.fork(() -> transport.getClientID(wid));
+                    scope.fork(() -> {
+                        resync(wid);
+                        return null;
+                    });
+                    scope.join();
+                    clientID = id.get();
                 }
                 connectToStream(wid, clientID);
+                final long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (timeToFirstSync < 0) {
+                    timeToFirstSync = time;
+                }
+                listener.doLog(Severity.INFO, "Synchronized and connected in " + time + "ms");
+                if (TIME_SYNC) {
+                    Execution.start("TimeSync", () -> {
+                        try {
+                            estimateServerDelta();
+                        } catch (final IOException e) {
+                            listener.doLog(e);
+                        }
+                    });
+                }
+            } catch (final ExecutionException e) {
+                listener.doLog(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                listener.connectionStatus(Status.ERROR);
             } catch (final Exception e) {
                 listener.doLog(e);
                 listener.connectionStatus(Status.ERROR);
             }
-        }, "connect").start();
+        });
+    }
+
+    /**
+     * @return the milliseconds from the first {@link #connectTo(String)} until
+     *         the files were synchronized and the stream was open, or -1 if
+     *         that did not happen yet
+     */
+    public long getTimeToFirstSync() {
+        return timeToFirstSync;
     }
 
-    private EventSource eventSource;
-    public long serverDiff;
+    /**
+     * Brings the model up to date with the server. If there is a local state
+     * and the server provides the hash tree of the workspace, only the
+     * differing subtrees are listed and transferred. Otherwise the whole
+     * {@link RepoInfo} is requested.
+     */
+    private void resync(final String wid) throws IOException, JsonProcessingException {
+        final WorkspaceModel model = wh.getModel();
+        if (merkleSupported && (model.size() != 0)) {
+            final long start = System.currentTimeMillis();
+            final MerkleTree.Difference difference = model.getMerkleTree().diff(new RemoteMerkleSource(wid));
+            if (difference != null) {
+                System.out.println("ConnectionHelper.resync() Reconciled " + difference + " in " + (System.currentTimeMillis() - start) + "ms");
+                wh.handleDifference(difference);
+                return;
+            }
+            listener.doLog(Severity.INFO, "The server does not provide a hash tree of the workspace, requesting all files");
+            merkleSupported = false;
+        }
+        final RepoInfo repo = getRepoInfo(wid);
+        wh.handleRepoInfo(repo);
+        for (final FileInfo fi : repo.getFiles()) {
+            wh.handleFileInfo(fi);
+        }
+    }
+
+    private volatile IEventStream eventStream;
+    /**
+     * The channel that replaces the event stream and the message posts, kept
+     * across reconnects so that no message is lost
+     */
+    private volatile MessageChannel channel;
+    private volatile boolean channelSupported = !Boolean.getBoolean("PSHDL_NO_CHANNEL");
+    private volatile StreamHandler streamHandler;
+    /**
+     * The ID of the last event whose changes were processed, not only
+     * dispatched
+     */
+    private volatile String lastEventId;
+    /**
+     * Incremented when a new stream is started, so that events of an earlier
+     * stream that complete late do not set {@link #lastEventId}
+     */
+    private volatile int streamGeneration;
+    private volatile long lastActivity;
+    private volatile boolean resuming;
+    private volatile int reconnectAttempts;
+    private boolean reconnecting;
+    private String streamWid;
+    private ScheduledFuture<?> watchdogTask;
+    private ScheduledFuture<?> pendingReconnect;
+    private static final long HEARTBEAT_TIMEOUT = Long.getLong("PSHDL_HEARTBEAT_TIMEOUT", 90) * 1000;
+    private static final long BASE_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 60000;
+    private static final int MAX_RESUME_ATTEMPTS = 8;
+    private static final ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("StreamWatchdog").build());
+    public volatile long serverDiff;
+    /**
+     * Files are compared by their hash, so the clock offset is only measured
+     * and applied to the modification stamps when asked for
+     */
+    private static final boolean TIME_SYNC = Boolean.getBoolean("PSHDL_TIME_SYNC");
+    private volatile long timeToFirstSync = -1;
     private static final String SERVER = getServer();
 
-    public void estimateServerDelta() {
-        final Client timeClient = createClient(true);
-        final WebTarget target = timeClient.target("http://" + SERVER + "/serverTime");
+    public void estimateServerDelta() throws IOException {
         final SortedSet<CData> cdata = Sets.newTreeSet();
         for (int i = 0; i < 5; i++) {
-            final CData measurement = doChristianSync(target);
+            final CData measurement = doChristianSync();
             cdata.add(measurement);
         }
         final long diff = cdata.first().diff;
         if (Math.abs(diff) > 10000) {
-            listener.doLog(Severity.INFO, "Server time difference is " + format(serverDiff));
+            listener.doLog(Severity.INFO, "Server time difference is " + format(diff));
         }
-        // Ignoring server time diff because we are hash based now
-        this.serverDiff = 0;
+        this.serverDiff = diff;
     }
 
     private String format(long diff) {
@@ -285,35 +496,29 @@ public class ConnectionHelper {
         }
     }
 
-    private CData doChristianSync(WebTarget target) {
+    private CData doChristianSync() throws IOException {
         final long start = System.currentTimeMillis();
-        final String repsonse = target.request().get(String.class);
+        final long serverTime = transport.getServerTime();
         final long end = System.currentTimeMillis();
-        final long serverTime = Long.parseLong(repsonse);
         return new CData(end - start, ((end + start) / 2) - serverTime);
     }
 
     public void connectToStream(final String wid, final String clientID) {
-        if (client == null) {
-            client = createClient(true);
-        }
-        final WebTarget path = client.target(getURL(wid, true, secure)).path(clientID).path("sse");
-        System.out.println("WorkspaceHelper.connectToStream()" + path.getUri());
+        open = true;
         try {
-            eventSource = new EventSource(path) {
-                @Override
-                public void onEvent(InboundEvent inboundEvent) {
-                    final String message = inboundEvent.readData(String.class);
-                    try {
-                        final Message<?> readValue = messageReader.readValue(message);
-                        listener.incomingMessage(readValue);
-                        wh.handleMessage(readValue);
-                    } catch (final Exception e) {
-                        listener.doLog(e);
-                        listener.connectionStatus(Status.ERROR);
-                    }
+            synchronized (this) {
+                streamWid = wid;
+                streamGeneration++;
+                lastEventId = null;
+                reconnectAttempts = 0;
+                if (channelSupported && (channel == null)) {
+                    channel = new MessageChannel();
+                }
+                openStream();
+                if (watchdogTask == null) {
+                    watchdogTask = scheduler.scheduleWithFixedDelay(() -> checkStream(), HEARTBEAT_TIMEOUT / 4, HEARTBEAT_TIMEOUT / 4, TimeUnit.MILLISECONDS);
                 }
-            };
+            }
             listener.connectionStatus(Status.CONNECTED);
             wh.startFileMonitor();
         } catch (final Exception e) {
@@ -322,81 +527,304 @@ public class ConnectionHelper {
         }
     }
 
-    public Client createClient(boolean apache) {
-        final ClientConfig clientConfig = new ClientConfig();
-        clientConfig.register(SseFeature.class);
-        clientConfig.register(MultiPartFeature.class);
-        if (apache) {
-            clientConfig.connector(new ApacheConnector(clientConfig));
+    private void openStream() throws IOException {
+        System.out.println("WorkspaceHelper.connectToStream() Opening the event stream of " + streamWid + (lastEventId != null ? " resuming after " + lastEventId : ""));
+        resuming = lastEventId != null;
+        lastActivity = System.currentTimeMillis();
+        final StreamHandler handler = new StreamHandler();
+        streamHandler = handler;
+        final MessageChannel messageChannel = channel;
+        if (messageChannel != null) {
+            try {
+                if (messageChannel.connect(transport, streamWid, clientID, handler)) {
+                    eventStream = messageChannel;
+                    return;
+                }
+                listener.doLog(Severity.INFO, "The server does not provide a message channel, using the event stream");
+            } catch (final IOException e) {
+                listener.doLog(Severity.INFO, "Failed to open the message channel, using the event stream: " + e.getMessage());
+            }
+            channelSupported = false;
+            channel = null;
+            for (final Object message : messageChannel.shutdown()) {
+                try {
+                    post(message);
+                } catch (final IOException e) {
+                    listener.doLog(e);
+                }
+            }
+        }
+        eventStream = transport.subscribe(streamWid, clientID, handler);
+    }
+
+    /**
+     * Receives the events of one stream. Once the stream is replaced, its
+     * remaining events are ignored.
+     */
+    private final class StreamHandler implements IEventHandler {
+        @Override
+        public void onEvent(String id, String data) {
+            if (this == streamHandler) {
+                handleEvent(id, data);
+            }
+        }
+
+        @Override
+        public String getLastEventId() {
+            return lastEventId;
+        }
+    }
+
+    private void handleEvent(String id, String message) {
+        lastActivity = System.currentTimeMillis();
+        if (reconnectAttempts != 0) {
+            reconnectAttempts = 0;
+            listener.connectionStatus(Status.CONNECTED);
+        }
+        if ((message == null) || message.isEmpty()) {
+            // A heartbeat
+            return;
+        }
+        if (resuming) {
+            resuming = false;
+            if (isGap(lastEventId, id)) {
+                listener.doLog(Severity.INFO, "Missed events could not be replayed by the server, synchronizing the workspace");
+                // Not on the stream thread, and after the events that were
+                // dispatched before
+                final String wid = streamWid;
+                wh.submitControl(() -> resync(wid));
+            }
+        }
+        try {
+            final Message<?> readValue = messageReader.readValue(message);
+            listener.incomingMessage(readValue);
+            wh.handleMessage(readValue);
+        } catch (final Exception e) {
+            listener.doLog(e);
+            listener.connectionStatus(Status.ERROR);
+        }
+        if (id != null) {
+            final int generation = streamGeneration;
+            wh.afterInbound(() -> {
+                if (generation == streamGeneration) {
+                    lastEventId = id;
+                }
+            });
+        }
+    }
+
+    /**
+     * Event IDs are expected to be consecutive numbers. If the first event
+     * after resuming does not follow the last one that was processed, the
+     * server could not replay the events in between.
+     */
+    private static boolean isGap(String lastID, String id) {
+        if ((lastID == null) || (id == null)) {
+            return true;
+        }
+        try {
+            return Long.parseLong(id.trim()) > (Long.parseLong(lastID.trim()) + 1);
+        } catch (final NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Periodically checks that the stream is still alive. The server sends
+     * heartbeats, so a stream that has been silent for longer than
+     * {@link #HEARTBEAT_TIMEOUT} is considered dead even if the socket is
+     * still open.
+     */
+    private synchronized void checkStream() {
+        if ((eventStream == null) || reconnecting) {
+            return;
+        }
+        if (wh.isInboundSaturated()) {
+            // The stream is not read while the inbound queue is full
+            lastActivity = System.currentTimeMillis();
+            return;
+        }
+        final long silence = System.currentTimeMillis() - lastActivity;
+        if (!eventStream.isOpen() || (silence > HEARTBEAT_TIMEOUT)) {
+            System.out.println("ConnectionHelper.checkStream() Stream is dead, no event for " + format(silence));
+            reconnect();
         }
-        return ClientBuilder.newClient(clientConfig);
     }
 
-    public RepoInfo getRepoInfo(final String wid, final Client client) throws IOException, JsonProcessingException {
-        final String url = getURL(wid, false, secure);
-        System.out.println("ConnectionHelper.getRepoInfo() Requesting:" + url);
-        final String repoInfo = client.target(url).request().accept(MediaType.APPLICATION_JSON).get(String.class);
-        return repoReader.<RepoInfo> readValue(repoInfo);
+    private synchronized void reconnect() {
+        eventStream.close();
+        eventStream = null;
+        streamHandler = null;
+        reconnecting = true;
+        reconnectAttempts++;
+        listener.connectionStatus(Status.RECONNECT);
+        if (reconnectAttempts > MAX_RESUME_ATTEMPTS) {
+            // The client ID is most likely expired, start from scratch
+            listener.doLog(Severity.INFO, "Failed to resume the connection, reconnecting");
+            final String wid = streamWid;
+            stopWatchdog();
+            try {
+                connectTo(wid);
+            } catch (final IOException e) {
+                listener.doLog(e);
+            }
+            return;
+        }
+        final long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(reconnectAttempts - 1, 16));
+        // Full jitter in the upper half, so that clients that lost the
+        // connection at the same time do not come back at the same time
+        final long delay = (backoff / 2) + (long) (r.nextDouble() * (backoff / 2));
+        System.out.println("ConnectionHelper.reconnect() Attempt " + reconnectAttempts + " in " + format(delay));
+        pendingReconnect = scheduler.schedule(() -> {
+            synchronized (ConnectionHelper.this) {
+                pendingReconnect = null;
+                reconnecting = false;
+                if (!open) {
+                    return;
+                }
+                try {
+                    openStream();
+                } catch (final Exception e) {
+                    listener.doLog(e);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
-    public String getClientID(final String wid, Client client) {
-        final WebTarget resource = client.target(getURL(wid, true, secure));
-        return resource.path("clientID").request().get(String.class);
+    private synchronized void stopWatchdog() {
+        if (watchdogTask != null) {
+            watchdogTask.cancel(false);
+            watchdogTask = null;
+        }
+        if (pendingReconnect != null) {
+            pendingReconnect.cancel(false);
+            pendingReconnect = null;
+        }
+        reconnecting = false;
     }
 
-    private static final Random r = new Random();
+    public RepoInfo getRepoInfo(final String wid) throws IOException {
+        System.out.println("ConnectionHelper.getRepoInfo() Requesting:" + endpoints.getWorkspaceURL(wid));
+        return transport.getRepoInfo(wid, compressTransfers);
+    }
 
-    public void uploadFile(File file, String workspaceID, String name) throws IOException {
-        try (final FormDataMultiPart formDataMultiPart = createFormBody(file, name)) {
-            final Client client = createClient(false);
-            final Response response = client.target(getURL(workspaceID, false, secure)).request(MediaType.TEXT_PLAIN_TYPE)
-                    .post(Entity.entity(formDataMultiPart, formDataMultiPart.getMediaType()));
-            final int status = response.getStatus();
-            if (status != 201) {
-                listener.doLog(Severity.ERROR, "Failed to upload file:" + file + " status was:" + status);
+    private volatile boolean merkleSupported = !Boolean.getBoolean("PSHDL_NO_MERKLE");
+    private static final ObjectReader nodeReader = JSONHelper.getReader(MerkleTree.Node.class);
+    private static final ObjectReader filesReader = JSONHelper.getReader(FileInfo[].class);
+
+    /**
+     * The hash tree as provided by the server below
+     * <code>workspace/&lt;id&gt;/merkle</code>. A server that does not
+     * provide it answers the request for the root with 404.
+     */
+    private class RemoteMerkleSource implements IMerkleSource {
+        private final String url;
+
+        public RemoteMerkleSource(String wid) {
+            this.url = endpoints.getWorkspaceURL(wid) + "/merkle";
+        }
+
+        @Override
+        public MerkleTree.Node getNode(String dirPath) throws IOException {
+            final String json = transport.getJSON(url, ImmutableMap.of("path", dirPath), compressTransfers);
+            if (json == null) {
+                return null;
+            }
+            return nodeReader.readValue(json);
+        }
+
+        @Override
+        public List<FileInfo> getFiles(String dirPath, boolean recursive) throws IOException {
+            final String json = transport.getJSON(url + "/files", ImmutableMap.of("path", dirPath, "recursive", Boolean.toString(recursive)), compressTransfers);
+            if (json == null) {
+                return Collections.emptyList();
             }
+            return Arrays.asList(filesReader.<FileInfo[]> readValue(json));
         }
     }
 
-    public void deleteFile(String workspaceID, String relPath) {
-        final Client client = createClient(false);
-        final Response response = client.target(getURL(workspaceID, false, secure)).path("delete").path(relPath).request(MediaType.TEXT_PLAIN_TYPE).delete();
-        final int status = response.getStatus();
+    public String getClientID(final String wid) throws IOException {
+        return transport.getClientID(wid);
+    }
+
+    public ITransport getTransport() {
+        return transport;
+    }
+
+    private static final Random r = new Random();
+
+    /**
+     * @return the HTTP status of the response, 201 if the file was created
+     */
+    public int uploadFile(File file, String workspaceID, String name) throws IOException {
+        final Map<String, String> fields = createFormFields(file);
+        final Result result = transfers.execute(Priority.SOURCE, file.length(), () -> postForm(workspaceID, file, name, fields), ConnectionHelper::isOverloaded);
+        final int status = result.status;
+        if (status != 201) {
+            listener.doLog(Severity.ERROR, "Failed to upload file:" + file + " status was:" + status);
+        }
+        return status;
+    }
+
+    /**
+     * @return the HTTP status of the response, 200 if the file was deleted
+     */
+    public int deleteFile(String workspaceID, String relPath) throws IOException {
+        final Result result = transfers.execute(Priority.SOURCE, TransferScheduler.UNKNOWN_SIZE, () -> transport.delete(workspaceID, relPath), ConnectionHelper::isOverloaded);
+        final int status = result.status;
         if (status != 200) {
             listener.doLog(Severity.ERROR, "Failed to delete file:" + relPath + " status was:" + status);
         }
+        return status;
     }
 
     public void uploadDerivedFile(File file, String workspaceID, String name, CompileInfo ci, String compileInfoSrc) throws IOException {
-        try (final FormDataMultiPart formDataMultiPart = createFormBody(file, name)) {
-            formDataMultiPart.field("applicationID", "PSHDLLocalClient");
-            // Don't look at it! This is embarassing.. I promise I will
-            // implement it
-            // properly after the demo...
-            formDataMultiPart.field("challenge", Long.toHexString(r.nextLong()));
-            formDataMultiPart.field("signedChallenge", Long.toHexString(r.nextLong()));
-            formDataMultiPart.field("compileInfo", writer.writeValueAsString(ci));
-            formDataMultiPart.field("compileInfoSrc", compileInfoSrc);
-            final Client client = createClient(false);
-            final Response response = client.target(getURL(workspaceID, false, secure)).request(MediaType.TEXT_PLAIN_TYPE)
-                    .post(Entity.entity(formDataMultiPart, formDataMultiPart.getMediaType()));
-            final int status = response.getStatus();
-            if (status != 201) {
-                listener.doLog(Severity.ERROR, "Failed to upload file:" + file + " status was:" + status + " " + response.readEntity(String.class));
-            }
+        final Map<String, String> fields = createFormFields(file);
+        fields.put("applicationID", "PSHDLLocalClient");
+        // Don't look at it! This is embarassing.. I promise I will
+        // implement it
+        // properly after the demo...
+        fields.put("challenge", Long.toHexString(r.nextLong()));
+        fields.put("signedChallenge", Long.toHexString(r.nextLong()));
+        fields.put("compileInfo", writer.writeValueAsString(ci));
+        fields.put("compileInfoSrc", compileInfoSrc);
+        final Result result = transfers.execute(Priority.DERIVED, file.length(), () -> postForm(workspaceID, file, name, fields), ConnectionHelper::isOverloaded);
+        final int status = result.status;
+        if (status != 201) {
+            listener.doLog(Severity.ERROR, "Failed to upload file:" + file + " status was:" + status + " " + result.message);
         }
     }
 
-    public FormDataMultiPart createFormBody(File file, String name) throws IOException {
-        final byte[] byteArray = Files.toByteArray(file);
-        final FormDataMultiPart formDataMultiPart = new FormDataMultiPart();
-        final FormDataContentDisposition dispo = FormDataContentDisposition//
-                .name("file")//
-                .fileName(name)//
-                .size(file.length())//
-                .modificationDate(new Date(file.lastModified())).build();
-        formDataMultiPart.bodyPart(new FormDataBodyPart(dispo, byteArray, MediaType.APPLICATION_OCTET_STREAM_TYPE));
-        formDataMultiPart.field("sha1", Hashing.sha1().hashBytes(byteArray).toString());
-        return formDataMultiPart;
+    private static boolean isOverloaded(Result result) {
+        return isOverloaded(result.status);
+    }
+
+    private static boolean isOverloaded(int status) {
+        return (status == 429) || (status >= 500);
+    }
+
+    /**
+     * Posts the file to the workspace. Files that are large enough are sent
+     * gzip compressed, the compression is streamed while the body is written.
+     * If the server rejects the encoding, the form is sent again uncompressed
+     * and compression is not attempted again for this connection.
+     */
+    private Result postForm(String workspaceID, File file, String name, Map<String, String> fields) throws IOException {
+        final boolean compress = compressTransfers && (file.length() >= COMPRESSION_THRESHOLD);
+        final Result result = transport.upload(workspaceID, file, name, fields, compress);
+        if (compress && ((result.status == 415) || (result.status == 400))) {
+            listener.doLog(Severity.INFO, "Server does not accept compressed uploads, sending uncompressed");
+            compressTransfers = false;
+            return postForm(workspaceID, file, name, fields);
+        }
+        return result;
+    }
+
+    private Map<String, String> createFormFields(File file) throws IOException {
+        // The file is streamed by the transport, only the hash needs to be
+        // known up front
+        final Map<String, String> fields = Maps.newLinkedHashMap();
+        fields.put("sha1", wh.getHashIndex().hash(file));
+        return fields;
     }
 }
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The single writer of the state of a workspace. Changes are posted to the
+ * mailbox and applied one after the other, so they need no locks and no
+ * update is lost. Readers on other threads see either immutable snapshots or
+ * concurrent collections that are only written by the loop.
+ * <p>
+ * The loop has no thread of its own. When the mailbox becomes non-empty it is
+ * drained on the shared executor, in batches, and the batch hooks run once
+ * after each batch instead of once per change. Tasks must not block, I/O is
+ * done before the result is posted.
+ */
+public class EventLoop {
+
+    private static final Executor executor = Execution.newExecutor("EventLoop");
+    private static final int MAX_BATCH = 1024;
+
+    private final String name;
+    private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final List<Runnable> batchHooks = Lists.newCopyOnWriteArrayList();
+    private volatile Thread current;
+
+    public EventLoop(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Posts the change to the mailbox
+     */
+    public void execute(Runnable task) {
+        mailbox.add(task);
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(() -> drain());
+        }
+    }
+
+    /**
+     * Posts the task and waits for its result. Called on the loop the task is
+     * executed directly.
+     */
+    public <T> T call(Callable<T> task) throws ExecutionException, InterruptedException {
+        if (isInLoop()) {
+            try {
+                return task.call();
+            } catch (final Exception e) {
+                throw new ExecutionException(e);
+            }
+        }
+        final FutureTask<T> future = new FutureTask<>(task);
+        execute(future);
+        return future.get();
+    }
+
+    /**
+     * Like {@link #call(Callable)}, for tasks that do not throw
+     */
+    public <T> T get(Callable<T> task) {
+        try {
+            return call(task);
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + name, e);
+        }
+    }
+
+    public boolean isInLoop() {
+        return current == Thread.currentThread();
+    }
+
+    /**
+     * Adds a hook that runs on the loop after every batch of changes, for
+     * example to publish a new snapshot
+     */
+    public void addBatchHook(Runnable hook) {
+        batchHooks.add(hook);
+    }
+
+    private void drain() {
+        current = Thread.currentThread();
+        try {
+            int count = 0;
+            Runnable task;
+            while ((count < MAX_BATCH) && ((task = mailbox.poll()) != null)) {
+                try {
+                    task.run();
+                } catch (final Exception e) {
+                    System.out.println("EventLoop.drain() " + name + " task failed: " + e);
+                    e.printStackTrace();
+                }
+                count++;
+            }
+            for (final Runnable hook : batchHooks) {
+                hook.run();
+            }
+        } finally {
+            current = null;
+            scheduled.set(false);
+        }
+        // Tasks posted after the last poll, or left over from a full batch
+        if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+            executor.execute(() -> drain());
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the tasks that mostly wait, for the network or for an external
+ * process. On a runtime with virtual threads (Java 21) every task gets a
+ * virtual thread of its own, so thousands of waiting tasks cost almost
+ * nothing. On older runtimes, or with <code>PSHDL_NO_VIRTUAL_THREADS</code>,
+ * they run on daemon platform threads, and executors are bounded by
+ * <code>PSHDL_BLOCKING_THREADS</code>.
+ * <p>
+ * Virtual threads are created by reflection, so the project still builds
+ * for Java 8.
+ */
+public final class Execution {
+
+    private static final int MAX_PLATFORM_THREADS = Integer.getInteger("PSHDL_BLOCKING_THREADS", 64);
+    private static final Method OF_VIRTUAL = findVirtual();
+    private static final ExecutorService scopes = newExecutor("Scope");
+
+    private Execution() {
+    }
+
+    private static Method findVirtual() {
+        if (Boolean.getBoolean("PSHDL_NO_VIRTUAL_THREADS")) {
+            return null;
+        }
+        try {
+            final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            // Throws on runtimes where virtual threads are a preview feature
+            ofVirtual.invoke(null);
+            return ofVirtual;
+        } catch (final ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if tasks run on virtual threads
+     */
+    public static boolean isVirtual() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @return a factory for threads named <code>name-n</code>, virtual if
+     *         available, daemon platform threads otherwise
+     */
+    public static ThreadFactory threadFactory(String name) {
+        if (OF_VIRTUAL != null) {
+            try {
+                final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (final ReflectiveOperationException e) {
+                System.out.println("Execution.threadFactory() Failed to create virtual threads, using platform threads: " + e);
+            }
+        }
+        return new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + "-%d").build();
+    }
+
+    /**
+     * Starts a long running task on a thread of its own, for example a loop
+     * that polls the file system
+     */
+    public static Thread start(String name, Runnable task) {
+        final Thread thread = threadFactory(name).newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return an executor that starts a virtual thread per task, or a pool of
+     *         at most <code>PSHDL_BLOCKING_THREADS</code> platform threads
+     *         that are released when idle
+     */
+    public static ExecutorService newExecutor(String name) {
+        final ThreadFactory factory = threadFactory(name);
+        if (OF_VIRTUAL != null) {
+            try {
+                final Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) perTask.invoke(null, factory);
+            } catch (final ReflectiveOperationException e) {
+                System.out.println("Execution.newExecutor() Failed to create a thread per task executor: " + e);
+            }
+        }
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_PLATFORM_THREADS, MAX_PLATFORM_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Opens a scope for the concurrent subtasks of one stage
+     */
+    public static Scope openScope() {
+        return new Scope(scopes);
+    }
+
+    /**
+     * The concurrent subtasks of one stage. {@link #join()} waits until all
+     * subtasks completed. When a subtask fails, the others are cancelled and
+     * join throws the failure. Closing the scope cancels the subtasks that
+     * are still running, so a subtask does not outlive the stage that forked
+     * it.
+     */
+    public static final class Scope implements AutoCloseable {
+        private final ExecutorService executor;
+        private final List<FutureTask<?>> subtasks = Lists.newArrayList();
+        private int running;
+        private Throwable failure;
+
+        /**
+         * A subtask is finished exactly once: either when its body returned,
+         * or when it was cancelled before it started. A subtask that is
+         * cancelled while it runs is still counted until its body returns.
+         */
+        private final class Subtask<T> extends FutureTask<T> {
+            private final AtomicBoolean claimed = new AtomicBoolean();
+
+            private Subtask(Callable<T> task) {
+                super(task);
+            }
+
+            @Override
+            public void run() {
+                if (!claimed.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    super.run();
+                } finally {
+                    finished();
+                }
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                final boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled && claimed.compareAndSet(false, true)) {
+                    finished();
+                }
+                return cancelled;
+            }
+
+            @Override
+            protected void setException(Throwable t) {
+                super.setException(t);
+                failed(t);
+            }
+        }
+
+        private Scope(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        public <T> Future<T> fork(Callable<T> task) {
+            final Subtask<T> subtask = new Subtask<T>(task);
+            synchronized (this) {
+                running++;
+                if (failure != null) {
+                    subtask.cancel(false);
+                    return subtask;
+                }
+                subtasks.add(subtask);
+            }
+            try {
+                executor.execute(subtask);
+            } catch (final RejectedExecutionException e) {
+                subtask.cancel(false);
+                throw e;
+            }
+            return subtask;
+        }
+
+        private synchronized void failed(Throwable t) {
+            if (failure == null) {
+                failure = t;
+                cancelAll();
+            }
+        }
+
+        private synchronized void finished() {
+            running--;
+            notifyAll();
+        }
+
+        private synchronized void cancelAll() {
+            for (final FutureTask<?> subtask : subtasks) {
+                subtask.cancel(true);
+            }
+        }
+
+        /**
+         * Waits for all subtasks
+         *
+         * @throws ExecutionException
+         *             with the cause of the first subtask that failed
+         */
+        public synchronized void join() throws InterruptedException, ExecutionException {
+            while (running > 0) {
+                wait();
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+        }
+
+        @Override
+        public void close() {
+            cancelAll();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Remembers the SHA-1 of local files. An entry is only used as long as the length and the modification time of the file are unchanged, so
+ * files only need to be read again after they have been modified. Hashes are computed by streaming the file through a small buffer, so the
+ * memory needed does not depend on the size of the file.
+ */
+public class HashIndex {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final class Entry {
+        public final long length;
+        public final long lastModified;
+        public final String hash;
+
+        public Entry(long length, long lastModified, String hash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+
+    /**
+     * Returns the known hash of the file
+     *
+     * @param file
+     *            the file to look up
+     * @return <code>null</code> if the hash is not known or the file changed since it was hashed
+     */
+    public String get(File file) {
+        final Entry entry = entries.get(file.getAbsolutePath());
+        if ((entry == null) || (entry.length != file.length()) || (entry.lastModified != file.lastModified())) {
+            return null;
+        }
+        return entry.hash;
+    }
+
+    /**
+     * Returns the hash of the file, either from the index or by hashing it
+     *
+     * @param file
+     *            the file to hash
+     * @return the lower case hex SHA-1 of the file
+     * @throws IOException
+     */
+    public String hash(File file) throws IOException {
+        final String known = get(file);
+        if (known != null) {
+            return known;
+        }
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+        final String hash = sha1(file);
+        entries.put(file.getAbsolutePath(), new Entry(length, lastModified, hash));
+        return hash;
+    }
+
+    /**
+     * Records the hash of a file that was verified by other means, for example while it was downloaded
+     *
+     * @param file
+     *            the file
+     * @param hash
+     *            the SHA-1 of the current content of the file
+     */
+    public void put(File file, String hash) {
+        entries.put(file.getAbsolutePath(), new Entry(file.length(), file.lastModified(), hash.toLowerCase()));
+    }
+
+    /**
+     * Sets the modification time of a file whose content is known to be unchanged, and updates its entry so that the file is not hashed
+     * again. Nothing is touched if the file already has that time.
+     *
+     * @param file
+     *            the file
+     * @param hash
+     *            the SHA-1 of the current content of the file
+     * @param lastModified
+     *            the new modification time
+     * @return <code>false</code> if the modification time could not be set
+     */
+    public boolean setLastModified(File file, String hash, long lastModified) {
+        if (file.lastModified() == lastModified) {
+            return true;
+        }
+        if (!file.setLastModified(lastModified)) {
+            return false;
+        }
+        put(file, hash);
+        return true;
+    }
+
+    public void remove(File file) {
+        entries.remove(file.getAbsolutePath());
+    }
+
+    /**
+     * Computes the SHA-1 of the file by streaming it through a fixed size buffer
+     *
+     * @param file
+     *            the file to hash
+     * @return the lower case hex SHA-1 of the file
+     * @throws IOException
+     */
+    public static String sha1(File file) throws IOException {
+        final Hasher hasher = Hashing.sha1().newHasher();
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileInputStream fis = new FileInputStream(file); FileChannel channel = fis.getChannel()) {
+            while (channel.read(buffer) != -1) {
+                hasher.putBytes(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+        return hasher.hash().toString();
+    }
+}
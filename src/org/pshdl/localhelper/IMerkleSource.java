@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.pshdl.localhelper.MerkleTree.Node;
+import org.pshdl.rest.models.FileInfo;
+
+/**
+ * A remote workspace that can be reconciled with a {@link MerkleTree}. Paths
+ * are relative to the workspace, the root is the empty path. The digests have
+ * to be computed as described in {@link MerkleTree}.
+ */
+public interface IMerkleSource {
+    /**
+     * @return the directory with its children one level deep, or
+     *         <code>null</code> if it does not exist. The root always exists,
+     *         even in an empty workspace.
+     */
+    public Node getNode(String dirPath) throws IOException;
+
+    /**
+     * @return the records of the files in the directory, and if recursive in
+     *         all of its sub directories
+     */
+    public List<FileInfo> getFiles(String dirPath, boolean recursive) throws IOException;
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * The rules of the <code>.pshdlignore</code> files of a workspace. They
+ * follow the gitignore syntax: a pattern without a slash matches a name at
+ * any depth below the directory of the ignore file, a pattern with a slash is
+ * relative to that directory, a trailing slash only matches directories and a
+ * leading <code>!</code> includes a path again. The rules of all files are
+ * compiled into one list where deeper files come after their parents, and the
+ * last matching rule wins. Like with git, nothing below an ignored directory
+ * can be included again, which allows to prune whole subtrees.
+ */
+public class IgnoreRules {
+
+    public static final String IGNORE_FILE = ".pshdlignore";
+    private static final List<String> DEFAULT_RULES = ImmutableList.of(WorkspaceHelper.HELPER_DIR + "/", ".git/", ".svn/", ".hg/", "*~", ".#*", "*.swp");
+
+    public static final class Rule {
+        private final Pattern pattern;
+        private final boolean negated;
+        private final boolean directoryOnly;
+
+        private Rule(Pattern pattern, boolean negated, boolean directoryOnly) {
+            this.pattern = pattern;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+        }
+
+        @Override
+        public String toString() {
+            return (negated ? "!" : "") + pattern + (directoryOnly ? "/" : "");
+        }
+    }
+
+    private final List<Rule> rules;
+
+    private IgnoreRules(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    public static IgnoreRules defaults() {
+        return new IgnoreRules(parse("", DEFAULT_RULES));
+    }
+
+    public static IgnoreRules of(List<Rule> rules) {
+        return new IgnoreRules(ImmutableList.copyOf(rules));
+    }
+
+    /**
+     * Reads the ignore files of the workspace. Ignored directories are not
+     * descended into.
+     */
+    public static IgnoreRules load(File root) {
+        final List<Rule> all = Lists.newArrayList();
+        final IgnoreRules defaults = defaults();
+        all.addAll(defaults.rules);
+        collect(root, "", defaults, all);
+        return of(all);
+    }
+
+    private static void collect(File dir, String relPath, IgnoreRules rules, List<Rule> all) {
+        rules = rules.withIgnoreFile(dir, relPath, all);
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            if (file.isDirectory()) {
+                final String childPath = childPath(relPath, file.getName());
+                if (!rules.isIgnored(childPath, true)) {
+                    collect(file, childPath, rules, all);
+                }
+            }
+        }
+    }
+
+    public static String childPath(String parent, String name) {
+        return parent.isEmpty() ? name : parent + '/' + name;
+    }
+
+    /**
+     * @return these rules followed by the ones of the ignore file in the
+     *         given directory, or these rules if there is none. The added
+     *         rules are also appended to the given list, if any.
+     */
+    public IgnoreRules withIgnoreFile(File dir, String dirRelPath, List<Rule> collector) {
+        final File ignoreFile = new File(dir, IGNORE_FILE);
+        if (!ignoreFile.isFile()) {
+            return this;
+        }
+        final List<Rule> added;
+        try {
+            added = parse(dirRelPath, Files.readLines(ignoreFile, Charsets.UTF_8));
+        } catch (final IOException e) {
+            System.err.println("IgnoreRules.withIgnoreFile() Failed to read:" + ignoreFile + " " + e);
+            return this;
+        }
+        if (collector != null) {
+            collector.addAll(added);
+        }
+        return new IgnoreRules(ImmutableList.<Rule> builder().addAll(rules).addAll(added).build());
+    }
+
+    public static List<Rule> parse(String dirRelPath, List<String> lines) {
+        final List<Rule> result = Lists.newArrayList();
+        final String base = dirRelPath.isEmpty() ? "" : Pattern.quote(dirRelPath + '/');
+        for (String line : lines) {
+            line = trimTrailing(line);
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final boolean negated = line.startsWith("!");
+            if (negated) {
+                line = line.substring(1);
+            }
+            final boolean directoryOnly = line.endsWith("/");
+            if (directoryOnly) {
+                line = line.substring(0, line.length() - 1);
+            }
+            if (line.isEmpty()) {
+                continue;
+            }
+            final String regex;
+            if (line.contains("/")) {
+                if (line.startsWith("/")) {
+                    line = line.substring(1);
+                }
+                regex = base + SyncRules.globToRegex(line);
+            } else {
+                regex = base + "(?:.*/)?" + SyncRules.globToRegex(line);
+            }
+            result.add(new Rule(Pattern.compile(regex), negated, directoryOnly));
+        }
+        return result;
+    }
+
+    private static String trimTrailing(String line) {
+        int end = line.length();
+        while ((end > 0) && Character.isWhitespace(line.charAt(end - 1)) && !((end > 1) && (line.charAt(end - 2) == '\\'))) {
+            end--;
+        }
+        return line.substring(0, end);
+    }
+
+    /**
+     * @return whether the path itself is ignored, without looking at its
+     *         parent directories. This is what a scan that prunes ignored
+     *         directories needs.
+     */
+    public boolean isIgnored(String relPath, boolean directory) {
+        for (int i = rules.size() - 1; i >= 0; i--) {
+            final Rule rule = rules.get(i);
+            if (rule.directoryOnly && !directory) {
+                continue;
+            }
+            if (rule.pattern.matcher(relPath).matches()) {
+                return !rule.negated;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the file or any of its parent directories is ignored
+     */
+    public boolean isExcluded(String relPath) {
+        int idx = relPath.indexOf('/');
+        while (idx != -1) {
+            if (isIgnored(relPath.substring(0, idx), true)) {
+                return true;
+            }
+            idx = relPath.indexOf('/', idx + 1);
+        }
+        return isIgnored(relPath, false);
+    }
+
+    public List<Rule> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+}
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.pshdl.localhelper.WorkspaceHelper.FileTask;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Collects inbound changes for a short window and only passes on the newest
+ * change per path. During bursts, for example a bulk import or a compile
+ * that updates many outputs at once, files that change more than once are
+ * only downloaded once. A delete of a path that is recreated within the
+ * window is dropped the same way.
+ * <p>
+ * The number of pending paths is bounded. When the bound is reached,
+ * {@link #add(String, long, FileTask)} passes the changes on itself and
+ * blocks while the sink is full, so the event stream is not read any
+ * further. The timer that ends a window is shared by all workspaces and
+ * never blocks: it only passes on as many changes as the sink accepts
+ * without waiting, and tries again with the next window.
+ * <p>
+ * A marker can be set to find out when the changes added so far were
+ * processed. It is passed on once all changes that were added before it
+ * were passed on, and replaces a marker that is still waiting.
+ */
+public class InboundCoalescer {
+
+    public static interface IChangeSink {
+        /**
+         * Passes the change on, blocks while the sink is full
+         */
+        public void apply(String relPath, FileTask task);
+
+        /**
+         * Passes the change on unless the sink is full
+         *
+         * @return <code>false</code> if the change was not accepted
+         */
+        public boolean tryApply(String relPath, FileTask task);
+
+        /**
+         * Passes the marker on without blocking. It has to run after the
+         * changes that were passed on before it.
+         */
+        public void applyMarker(Runnable marker);
+    }
+
+    private static final class Change {
+        public final long timestamp;
+        public final FileTask task;
+
+        public Change(long timestamp, FileTask task) {
+            this.timestamp = timestamp;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Only times the windows and never blocks, so a single platform thread
+     * outside of {@link Execution} serves all workspaces
+     */
+    private static final ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("InboundCoalescer").build());
+
+    private final long windowMillis;
+    private final int capacity;
+    private final IChangeSink sink;
+    /**
+     * Held while changes are passed on, so that an older change of a path
+     * is never passed on after a newer one
+     */
+    private final ReentrantLock flushing = new ReentrantLock();
+    private Map<String, Change> pending = Maps.newLinkedHashMap();
+    private boolean scheduled;
+    private int superseded;
+    private Runnable marker;
+
+    public InboundCoalescer(long windowMillis, int capacity, IChangeSink sink) {
+        this.windowMillis = windowMillis;
+        this.capacity = capacity;
+        this.sink = sink;
+    }
+
+    /**
+     * Adds a change for the path. It replaces a pending change for the same
+     * path unless that one is newer. Blocks if too many changes are pending
+     * and the sink is full.
+     *
+     * @param timestamp
+     *            the modification time of the record the change is about
+     */
+    public void add(String relPath, long timestamp, FileTask task) {
+        if (windowMillis <= 0) {
+            sink.apply(relPath, task);
+            return;
+        }
+        final boolean full;
+        synchronized (this) {
+            final Change old = pending.get(relPath);
+            if (old != null) {
+                superseded++;
+            }
+            if ((old == null) || (old.timestamp <= timestamp)) {
+                pending.put(relPath, new Change(timestamp, task));
+            }
+            full = pending.size() >= capacity;
+            if (!full && !scheduled) {
+                scheduled = true;
+                scheduler.schedule(() -> flushAvailable(), windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Sets the marker that is passed on once the changes added so far were
+     * passed on
+     */
+    public void mark(Runnable marker) {
+        if (windowMillis <= 0) {
+            sink.applyMarker(marker);
+            return;
+        }
+        synchronized (this) {
+            this.marker = marker;
+            if (!scheduled) {
+                scheduled = true;
+                scheduler.schedule(() -> flushAvailable(), windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Passes on all pending changes, blocks while the sink is full
+     */
+    public void flush() {
+        flushing.lock();
+        try {
+            final Map<String, Change> changes;
+            final Runnable passedMarker;
+            synchronized (this) {
+                changes = pending;
+                pending = Maps.newLinkedHashMap();
+                passedMarker = marker;
+                marker = null;
+                reportSuperseded();
+            }
+            for (final Entry<String, Change> entry : changes.entrySet()) {
+                sink.apply(entry.getKey(), entry.getValue().task);
+            }
+            if (passedMarker != null) {
+                sink.applyMarker(passedMarker);
+            }
+        } finally {
+            flushing.unlock();
+        }
+    }
+
+    /**
+     * Called by the shared timer, passes on the pending changes that the
+     * sink accepts without blocking
+     */
+    private void flushAvailable() {
+        if (!flushing.tryLock()) {
+            // A blocking flush is in progress, the changes added since are
+            // picked up with the next window
+            scheduler.schedule(() -> flushAvailable(), windowMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        try {
+            synchronized (this) {
+                scheduled = false;
+                final Iterator<Entry<String, Change>> iterator = pending.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    final Entry<String, Change> entry = iterator.next();
+                    if (!sink.tryApply(entry.getKey(), entry.getValue().task)) {
+                        scheduled = true;
+                        scheduler.schedule(() -> flushAvailable(), windowMillis, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    iterator.remove();
+                }
+                reportSuperseded();
+                if (marker != null) {
+                    sink.applyMarker(marker);
+                    marker = null;
+                }
+            }
+        } finally {
+            flushing.unlock();
+        }
+    }
+
+    private void reportSuperseded() {
+        if (superseded > 0) {
+            System.out.println("InboundCoalescer.flush() Skipped " + superseded + " superseded inbound changes");
+            superseded = 0;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pshdl.localhelper.WorkspaceHelper.IWorkspaceListener;
+import org.pshdl.localhelper.WorkspaceHelper.Severity;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Executes tasks in parallel, while tasks with the same key are executed one
+ * after the other in the order they were submitted. Control tasks have their
+ * own lane and run in the order they were submitted. A control task starts
+ * once all keyed tasks submitted before it completed, keyed tasks submitted
+ * after it do not wait for it.
+ * <p>
+ * The number of keyed tasks that are queued is bounded. When the bound is
+ * reached, {@link #execute(String, Runnable)} blocks until a task completed,
+ * which in turn stops the event stream from being read.
+ */
+public class KeyedExecutor {
+
+    private final IWorkspaceListener listener;
+    private final ExecutorService workers;
+    private final ExecutorService control;
+    private final boolean ownsThreads;
+    private final Map<String, Queue<Runnable>> queues = Maps.newHashMap();
+    private final Queue<ControlTask> controlQueue = new ArrayDeque<>();
+    private boolean controlRunning;
+    private final Semaphore permits;
+    private final int capacity;
+    private volatile boolean saturated;
+
+    public KeyedExecutor(String name, int threads, int capacity, IWorkspaceListener listener) {
+        this(Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + "-%d").build()),
+                Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + "-control").build()), capacity, listener, true);
+    }
+
+    /**
+     * Executes the tasks on threads that are shared with other executors. The
+     * keys, the order of the control lane and the bound are still kept per
+     * executor. The threads are not shut down with the executor.
+     */
+    public KeyedExecutor(ExecutorService workers, ExecutorService control, int capacity, IWorkspaceListener listener) {
+        this(workers, control, capacity, listener, false);
+    }
+
+    private KeyedExecutor(ExecutorService workers, ExecutorService control, int capacity, IWorkspaceListener listener, boolean ownsThreads) {
+        this.listener = listener;
+        this.capacity = capacity;
+        this.permits = new Semaphore(capacity);
+        this.workers = workers;
+        this.control = control;
+        this.ownsThreads = ownsThreads;
+    }
+
+    private static final class ControlTask {
+        private final Runnable task;
+        /**
+         * The number of keyed lanes that still have to reach the barrier of
+         * the task, plus one while the barriers are queued
+         */
+        private final AtomicInteger waiting = new AtomicInteger(1);
+
+        private ControlTask(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    /**
+     * Queued on a keyed lane to mark the point a control task waits for. It
+     * does not hold a permit.
+     */
+    private final class Barrier implements Runnable {
+        private final ControlTask controlTask;
+
+        private Barrier(ControlTask controlTask) {
+            this.controlTask = controlTask;
+        }
+
+        @Override
+        public void run() {
+            if (controlTask.waiting.decrementAndGet() == 0) {
+                startControl();
+            }
+        }
+    }
+
+    /**
+     * Queues the task behind all other tasks of the same key. Blocks if the
+     * queue is full.
+     */
+    public void execute(String key, Runnable task) {
+        if (!permits.tryAcquire()) {
+            if (!saturated) {
+                saturated = true;
+                listener.doLog(Severity.WARNING, "Inbound event queue is full with " + capacity + " pending events, slowing down the event stream");
+            }
+            try {
+                while (!permits.tryAcquire(10, TimeUnit.SECONDS)) {
+                    System.out.println("KeyedExecutor.execute() Still waiting for a free slot, " + getQueueDepth() + " events queued");
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        enqueue(key, task);
+    }
+
+    /**
+     * Queues the task behind all other tasks of the same key, unless the
+     * queue is full
+     *
+     * @return <code>false</code> if the task was not queued
+     */
+    public boolean tryExecute(String key, Runnable task) {
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+        enqueue(key, task);
+        return true;
+    }
+
+    private void enqueue(String key, Runnable task) {
+        final boolean start;
+        synchronized (queues) {
+            Queue<Runnable> queue = queues.get(key);
+            start = queue == null;
+            if (start) {
+                queue = new ArrayDeque<>();
+                queues.put(key, queue);
+            }
+            queue.add(task);
+        }
+        if (start) {
+            workers.execute(() -> drain(key));
+        }
+    }
+
+    private void drain(String key) {
+        while (true) {
+            final Runnable task;
+            synchronized (queues) {
+                final Queue<Runnable> queue = queues.get(key);
+                task = queue.poll();
+                if (task == null) {
+                    queues.remove(key);
+                    return;
+                }
+            }
+            if (task instanceof Barrier) {
+                task.run();
+                continue;
+            }
+            try {
+                task.run();
+            } catch (final Exception e) {
+                listener.doLog(e);
+            } finally {
+                permits.release();
+            }
+            if (saturated && (permits.availablePermits() > (capacity / 2))) {
+                saturated = false;
+                listener.doLog(Severity.INFO, "Inbound event queue recovered");
+            }
+        }
+    }
+
+    /**
+     * Executes the task on the control lane, after the keyed tasks that were
+     * submitted before it and after the previous control tasks
+     */
+    public void executeControl(Runnable task) {
+        final ControlTask controlTask = new ControlTask(task);
+        synchronized (controlQueue) {
+            controlQueue.add(controlTask);
+        }
+        synchronized (queues) {
+            // Lanes that are present are queued or running
+            controlTask.waiting.addAndGet(queues.size());
+            for (final Queue<Runnable> queue : queues.values()) {
+                queue.add(new Barrier(controlTask));
+            }
+        }
+        if (controlTask.waiting.decrementAndGet() == 0) {
+            startControl();
+        }
+    }
+
+    private void startControl() {
+        synchronized (controlQueue) {
+            final ControlTask head = controlQueue.peek();
+            if (controlRunning || (head == null) || (head.waiting.get() != 0)) {
+                return;
+            }
+            controlRunning = true;
+        }
+        control.execute(() -> drainControl());
+    }
+
+    private void drainControl() {
+        while (true) {
+            final ControlTask task;
+            synchronized (controlQueue) {
+                task = controlQueue.peek();
+                if ((task == null) || (task.waiting.get() != 0)) {
+                    // The barrier of the head starts the lane again
+                    controlRunning = false;
+                    return;
+                }
+                controlQueue.poll();
+            }
+            try {
+                task.task.run();
+            } catch (final Exception e) {
+                listener.doLog(e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of keyed tasks that are queued or running
+     */
+    public int getQueueDepth() {
+        return capacity - permits.availablePermits();
+    }
+
+    /**
+     * @return <code>true</code> while submitters are blocked because the queue
+     *         is full
+     */
+    public boolean isSaturated() {
+        return saturated;
+    }
+
+    public void shutdown() {
+        if (ownsThreads) {
+            workers.shutdown();
+            control.shutdown();
+        }
+    }
+}
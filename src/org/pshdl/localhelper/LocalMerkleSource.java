@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.pshdl.localhelper.MerkleTree.Node;
+import org.pshdl.localhelper.WorkspaceModel.FileEntry;
+import org.pshdl.rest.models.FileInfo;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A {@link IMerkleSource} over a set of file records that are held in memory.
+ * It stands in for the server endpoint where the server does not provide one,
+ * for example to reconcile against a {@link org.pshdl.rest.models.RepoInfo}
+ * obtained otherwise, or to serve the tree from a test server.
+ */
+public class LocalMerkleSource implements IMerkleSource {
+
+    private final Map<String, FileInfo> files;
+    private final MerkleTree tree;
+
+    public LocalMerkleSource(Collection<FileInfo> infos) {
+        this.files = Maps.newHashMapWithExpectedSize(infos.size());
+        final List<FileEntry> entries = Lists.newArrayListWithCapacity(infos.size());
+        for (final FileInfo fi : infos) {
+            files.put(fi.record.relPath, fi);
+            entries.add(new FileEntry(fi.record.relPath, fi.record.lastModified, fi.record.hash));
+        }
+        this.tree = new MerkleTree(entries);
+    }
+
+    @Override
+    public Node getNode(String dirPath) {
+        return tree.getNode(dirPath);
+    }
+
+    @Override
+    public List<FileInfo> getFiles(String dirPath, boolean recursive) {
+        final List<FileEntry> entries = tree.getFiles(dirPath, recursive);
+        final List<FileInfo> result = Lists.newArrayListWithCapacity(entries.size());
+        for (final FileEntry entry : entries) {
+            result.add(files.get(entry.relPath));
+        }
+        return result;
+    }
+}
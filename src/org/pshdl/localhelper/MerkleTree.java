@@ -0,0 +1,322 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+import org.pshdl.localhelper.WorkspaceModel.FileEntry;
+import org.pshdl.rest.models.FileInfo;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * A hash tree over the paths of the workspace. The digest of a file is its
+ * SHA-1, the digest of a directory is the SHA-1 over its children ordered by
+ * name, where each child contributes its UTF-8 name, a zero byte, a one for
+ * directories or a zero for files, and its digest. Two directories with the
+ * same digest have the same content, so a reconciliation only has to descend
+ * into the subtrees whose digests differ.
+ */
+public class MerkleTree {
+
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+    private static final byte[] NO_HASH = new byte[0];
+
+    /**
+     * The summary of a directory or file as exchanged with an
+     * {@link IMerkleSource}. The children of a directory are only listed one
+     * level deep, they have no children themselves.
+     */
+    public static class Node {
+        @JsonProperty
+        public String name;
+        @JsonProperty
+        public String digest;
+        @JsonProperty
+        public boolean directory;
+        @JsonProperty
+        public List<Node> children;
+
+        public Node() {
+        }
+
+        public Node(String name, String digest, boolean directory) {
+            this.name = name;
+            this.digest = digest;
+            this.directory = directory;
+        }
+
+        @Override
+        public String toString() {
+            return name + (directory ? "/ " : " ") + digest;
+        }
+    }
+
+    /**
+     * The result of a reconciliation against a remote source
+     */
+    public static class Difference {
+        /**
+         * The remote files that are new or differ from the local state
+         */
+        public final List<FileInfo> changed = Lists.newArrayList();
+        /**
+         * The local entries that no longer exist remotely
+         */
+        public final List<FileEntry> removed = Lists.newArrayList();
+        /**
+         * The number of requests made to the source
+         */
+        public int requests;
+
+        public boolean isEmpty() {
+            return changed.isEmpty() && removed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return changed.size() + " changed, " + removed.size() + " removed in " + requests + " requests";
+        }
+    }
+
+    private static final class TreeNode {
+        private final String path;
+        private final FileEntry entry;
+        private final SortedMap<String, TreeNode> children;
+        private byte[] digest;
+
+        private TreeNode(String path, FileEntry entry) {
+            this.path = path;
+            this.entry = entry;
+            this.children = entry == null ? Maps.<String, TreeNode> newTreeMap() : null;
+        }
+
+        private boolean isDirectory() {
+            return children != null;
+        }
+
+        private String getDigest() {
+            return HEX.encode(digest);
+        }
+    }
+
+    private final TreeNode root = new TreeNode("", null);
+
+    public MerkleTree(Collection<FileEntry> files) {
+        for (final FileEntry entry : files) {
+            insert(entry);
+        }
+        computeDigest(root);
+    }
+
+    private void insert(FileEntry entry) {
+        final String[] segments = entry.relPath.split("/");
+        TreeNode current = root;
+        for (int i = 0; i < (segments.length - 1); i++) {
+            TreeNode child = current.children.get(segments[i]);
+            if ((child == null) || !child.isDirectory()) {
+                child = new TreeNode(childPath(current.path, segments[i]), null);
+                current.children.put(segments[i], child);
+            }
+            current = child;
+        }
+        final String name = segments[segments.length - 1];
+        current.children.put(name, new TreeNode(childPath(current.path, name), entry));
+    }
+
+    private static String childPath(String parent, String name) {
+        return parent.isEmpty() ? name : parent + '/' + name;
+    }
+
+    private static void computeDigest(TreeNode node) {
+        if (!node.isDirectory()) {
+            final byte[] hash = node.entry.getHashBytes();
+            node.digest = hash != null ? hash : NO_HASH;
+            return;
+        }
+        final Hasher hasher = Hashing.sha1().newHasher();
+        for (final Map.Entry<String, TreeNode> e : node.children.entrySet()) {
+            final TreeNode child = e.getValue();
+            computeDigest(child);
+            hasher.putString(e.getKey(), StandardCharsets.UTF_8);
+            hasher.putByte((byte) 0);
+            hasher.putByte((byte) (child.isDirectory() ? 1 : 0));
+            hasher.putBytes(child.digest);
+        }
+        node.digest = hasher.hash().asBytes();
+    }
+
+    public String getDigest() {
+        return root.getDigest();
+    }
+
+    private TreeNode find(String dirPath) {
+        if (dirPath.isEmpty()) {
+            return root;
+        }
+        TreeNode current = root;
+        for (final String segment : dirPath.split("/")) {
+            if (!current.isDirectory()) {
+                return null;
+            }
+            current = current.children.get(segment);
+            if (current == null) {
+                return null;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return the directory with its children one level deep, or
+     *         <code>null</code> if there is no such directory
+     */
+    public Node getNode(String dirPath) {
+        final TreeNode node = find(dirPath);
+        if ((node == null) || !node.isDirectory()) {
+            return null;
+        }
+        final Node result = new Node(dirPath, node.getDigest(), true);
+        result.children = Lists.newArrayListWithCapacity(node.children.size());
+        for (final Map.Entry<String, TreeNode> e : node.children.entrySet()) {
+            result.children.add(new Node(e.getKey(), e.getValue().getDigest(), e.getValue().isDirectory()));
+        }
+        return result;
+    }
+
+    /**
+     * @return the files in the directory, and if recursive in all of its sub
+     *         directories
+     */
+    public List<FileEntry> getFiles(String dirPath, boolean recursive) {
+        final List<FileEntry> result = Lists.newArrayList();
+        final TreeNode node = find(dirPath);
+        if ((node != null) && node.isDirectory()) {
+            collectFiles(node, recursive, result);
+        }
+        return result;
+    }
+
+    private static void collectFiles(TreeNode node, boolean recursive, List<FileEntry> result) {
+        for (final TreeNode child : node.children.values()) {
+            if (!child.isDirectory()) {
+                result.add(child.entry);
+            } else if (recursive) {
+                collectFiles(child, recursive, result);
+            }
+        }
+    }
+
+    /**
+     * Compares this tree top-down with the remote one. Subtrees with equal
+     * digests are skipped, for each differing directory one listing is
+     * requested, and the records of the differing files are requested per
+     * directory.
+     *
+     * @return the difference, or <code>null</code> if the source does not
+     *         provide a root
+     */
+    public Difference diff(IMerkleSource source) throws IOException {
+        final Difference difference = new Difference();
+        final Node remoteRoot = source.getNode("");
+        difference.requests++;
+        if (remoteRoot == null) {
+            return null;
+        }
+        diff(root, remoteRoot, source, difference);
+        return difference;
+    }
+
+    private void diff(TreeNode local, Node remote, IMerkleSource source, Difference difference) throws IOException {
+        if (remote.digest.equals(local.getDigest())) {
+            return;
+        }
+        final Set<String> remoteNames = Sets.newHashSet();
+        final Set<String> changedFiles = Sets.newHashSet();
+        for (final Node remoteChild : remote.children) {
+            remoteNames.add(remoteChild.name);
+            final TreeNode localChild = local.children.get(remoteChild.name);
+            if ((localChild != null) && (localChild.isDirectory() == remoteChild.directory) && remoteChild.digest.equals(localChild.getDigest())) {
+                continue;
+            }
+            if (localChild != null) {
+                if (localChild.isDirectory() && !remoteChild.directory) {
+                    collectFiles(localChild, true, difference.removed);
+                } else if (!localChild.isDirectory() && remoteChild.directory) {
+                    difference.removed.add(localChild.entry);
+                }
+            }
+            final String childPath = childPath(local.path, remoteChild.name);
+            if (!remoteChild.directory) {
+                changedFiles.add(childPath);
+            } else if ((localChild != null) && localChild.isDirectory()) {
+                final Node remoteDir = source.getNode(childPath);
+                difference.requests++;
+                if (remoteDir != null) {
+                    diff(localChild, remoteDir, source, difference);
+                } else {
+                    // Removed while we were looking
+                    collectFiles(localChild, true, difference.removed);
+                }
+            } else {
+                // A directory that is entirely new
+                difference.changed.addAll(source.getFiles(childPath, true));
+                difference.requests++;
+            }
+        }
+        for (final Map.Entry<String, TreeNode> e : local.children.entrySet()) {
+            final TreeNode localChild = e.getValue();
+            if (!remoteNames.contains(e.getKey())) {
+                if (localChild.isDirectory()) {
+                    collectFiles(localChild, true, difference.removed);
+                } else {
+                    difference.removed.add(localChild.entry);
+                }
+            }
+        }
+        if (!changedFiles.isEmpty()) {
+            for (final FileInfo fi : source.getFiles(local.path, false)) {
+                if (changedFiles.contains(fi.record.relPath)) {
+                    difference.changed.add(fi);
+                }
+            }
+            difference.requests++;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.pshdl.localhelper.WorkspaceHelper.IWorkspaceListener;
+import org.pshdl.localhelper.WorkspaceHelper.Severity;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A persistent journal of the uploads and deletes that still have to be sent
+ * to the server. Operations on the same path are coalesced: repeated uploads
+ * collapse into one, and a delete of a file whose upload did not happen yet
+ * cancels the upload. If the file was never known to the server nothing is
+ * sent at all.
+ * <p>
+ * The journal file is only rewritten when the set of pending operations
+ * actually changes. Operations that fail are retried with an exponential
+ * backoff, and dropped when the server rejects them with a client error.
+ */
+public class OutboundJournal {
+
+    public static enum OpType {
+        UPLOAD, DELETE
+    }
+
+    public static class Operation {
+        @JsonProperty
+        public OpType type;
+        /**
+         * Whether the path is not known to the server yet
+         */
+        @JsonProperty
+        public boolean created;
+        /**
+         * Incremented when the operation is requested again while it is
+         * pending, so that a run that started before does not complete it
+         */
+        private int version;
+        private int attempts;
+        private long notBefore;
+
+        public Operation() {
+        }
+
+        public Operation(OpType type, boolean created) {
+            this.type = type;
+            this.created = created;
+        }
+
+        @Override
+        public String toString() {
+            return type + (created ? " (new)" : "");
+        }
+    }
+
+    public static enum Outcome {
+        /**
+         * The operation was accepted by the server
+         */
+        DONE,
+        /**
+         * The operation failed, but may succeed later
+         */
+        RETRY,
+        /**
+         * The server refused the operation, sending it again will not help
+         */
+        REJECTED;
+
+        public static Outcome of(int status, int expected) {
+            if (status == expected) {
+                return DONE;
+            }
+            if ((status >= 400) && (status < 500) && (status != 408) && (status != 429)) {
+                return REJECTED;
+            }
+            return RETRY;
+        }
+    }
+
+    public static interface IOperationHandler {
+        public Outcome upload(String relPath) throws IOException;
+
+        public Outcome delete(String relPath) throws IOException;
+    }
+
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = Long.getLong("PSHDL_JOURNAL_MAX_BACKOFF", 5 * 60 * 1000);
+    /**
+     * The number of concurrent transfers is limited by the
+     * {@link TransferScheduler}
+     */
+    private static final ExecutorService executor = Execution.newExecutor("OutboundJournal");
+
+    private final File journalFile;
+    private final IOperationHandler handler;
+    private final IWorkspaceListener listener;
+    private final Map<String, Operation> pending;
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    public OutboundJournal(File journalFile, IOperationHandler handler, IWorkspaceListener listener) {
+        this.journalFile = journalFile;
+        this.handler = handler;
+        this.listener = listener;
+        Map<String, Operation> read = null;
+        if (journalFile.exists()) {
+            try {
+                read = JSONHelper.getMapper().readValue(journalFile, new TypeReference<Map<String, Operation>>() {
+                });
+            } catch (final IOException e) {
+                listener.doLog(Severity.ERROR, "Failed to read the outbound journal from:" + journalFile + " " + e);
+            }
+        }
+        this.pending = Maps.newLinkedHashMap();
+        if (read != null) {
+            pending.putAll(read);
+        }
+    }
+
+    public synchronized void upload(String relPath, boolean created) {
+        final Operation old = pending.get(relPath);
+        if (old != null) {
+            if (old.type == OpType.UPLOAD) {
+                // The upload reads the file when it is sent, so there is
+                // nothing to persist. The backoff is kept as well.
+                old.version++;
+                return;
+            }
+            // A pending delete means the server still has the file
+            created = false;
+            pending.remove(relPath);
+        }
+        pending.put(relPath, new Operation(OpType.UPLOAD, created));
+        save();
+    }
+
+    public synchronized void delete(String relPath) {
+        final Operation old = pending.get(relPath);
+        if ((old != null) && (old.type == OpType.DELETE)) {
+            return;
+        }
+        pending.remove(relPath);
+        if ((old == null) || !old.created) {
+            pending.put(relPath, new Operation(OpType.DELETE, false));
+        }
+        save();
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Sends all pending operations to the server, several at once. Operations
+     * that fail remain in the journal and are skipped until their backoff
+     * expired. If the journal is already being drained by another thread,
+     * this returns immediately.
+     *
+     * @return the number of operations that remain in the journal
+     */
+    public int drain() {
+        if (!draining.compareAndSet(false, true)) {
+            return size();
+        }
+        try {
+            final List<Entry<String, Operation>> ops = Lists.newArrayList();
+            final List<Integer> versions = Lists.newArrayList();
+            synchronized (this) {
+                final long now = System.currentTimeMillis();
+                for (final Entry<String, Operation> entry : pending.entrySet()) {
+                    if (entry.getValue().notBefore <= now) {
+                        ops.add(Maps.immutableEntry(entry.getKey(), entry.getValue()));
+                        versions.add(entry.getValue().version);
+                    }
+                }
+            }
+            if (ops.isEmpty()) {
+                return size();
+            }
+            final List<Future<Boolean>> futures = Lists.newArrayListWithCapacity(ops.size());
+            for (int i = 0; i < ops.size(); i++) {
+                final Entry<String, Operation> entry = ops.get(i);
+                final int version = versions.get(i);
+                futures.add(executor.submit(() -> execute(entry.getKey(), entry.getValue(), version)));
+            }
+            boolean removed = false;
+            for (final Future<Boolean> future : futures) {
+                try {
+                    removed |= future.get();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (final ExecutionException e) {
+                    listener.doLog(Severity.ERROR, "Outbound operation failed with:" + e.getCause());
+                }
+            }
+            synchronized (this) {
+                if (removed) {
+                    save();
+                }
+                return pending.size();
+            }
+        } finally {
+            draining.set(false);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the operation was removed from the journal
+     */
+    private boolean execute(String relPath, Operation op, int version) {
+        Outcome outcome;
+        try {
+            switch (op.type) {
+            case UPLOAD:
+                outcome = handler.upload(relPath);
+                break;
+            case DELETE:
+                outcome = handler.delete(relPath);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation:" + op.type);
+            }
+        } catch (final Exception e) {
+            listener.doLog(Severity.WARNING, "Failed to " + op + " " + relPath + ", will retry: " + e);
+            outcome = Outcome.RETRY;
+        }
+        synchronized (this) {
+            // Only complete it if it was not replaced or requested again in
+            // the mean time
+            if ((pending.get(relPath) != op) || (op.version != version)) {
+                return false;
+            }
+            if (outcome == Outcome.RETRY) {
+                final long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(op.attempts, 20));
+                op.attempts++;
+                op.notBefore = System.currentTimeMillis() + backoff;
+                return false;
+            }
+            if (outcome == Outcome.REJECTED) {
+                listener.doLog(Severity.ERROR, "The server rejected " + op + " " + relPath + ", giving up");
+            }
+            pending.remove(relPath);
+            return true;
+        }
+    }
+
+    private void save() {
+        try {
+            if (pending.isEmpty()) {
+                if (journalFile.exists() && !journalFile.delete()) {
+                    listener.doLog(Severity.ERROR, "Failed to delete the outbound journal:" + journalFile);
+                }
+                return;
+            }
+            final File dir = journalFile.getParentFile();
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Failed to create directory:" + dir);
+            }
+            final File temp = new File(dir, journalFile.getName() + ".tmp");
+            JSONHelper.getWriter().writeValue(temp, pending);
+            Files.move(temp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            listener.doLog(Severity.ERROR, "Failed to write the outbound journal to:" + journalFile + " " + e);
+        }
+    }
+}
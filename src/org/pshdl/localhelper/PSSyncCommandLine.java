@@ -96,6 +96,18 @@ public class PSSyncCommandLine implements IWorkspaceListener {
 
     public static void main(String[] args) throws ParseException, InterruptedException, IOException {
         final Configuration config = configure(args);
+        final CommandLine cli = new PosixParser().parse(options, args);
+        if (cli.hasOption("workspaces") || cli.hasOption("control")) {
+            final PSSyncDaemon daemon = new PSSyncDaemon(config);
+            if (cli.hasOption("workspaces")) {
+                daemon.readWorkspaces(new File(cli.getOptionValue("workspaces")));
+            }
+            if (cli.hasOption("control")) {
+                daemon.serveControl(Integer.parseInt(cli.getOptionValue("control")));
+            }
+            daemon.awaitClose();
+            return;
+        }
         if (config.workspaceID == null) {
             System.out.println("The workspace ID is a required option");
             printUsage();
@@ -121,11 +133,30 @@ public class PSSyncCommandLine implements IWorkspaceListener {
     }
 
     private WorkspaceHelper workspaceHelper;
+    private final String prefix;
+    private volatile Status status = Status.CLOSED;
+
+    public PSSyncCommandLine() {
+        this("");
+    }
 
-    private void setWorkspaceHelper(WorkspaceHelper wh) {
+    /**
+     * @param prefix
+     *            printed before every line, to tell the workspaces of a
+     *            daemon apart
+     */
+    PSSyncCommandLine(String prefix) {
+        this.prefix = prefix;
+    }
+
+    void setWorkspaceHelper(WorkspaceHelper wh) {
         this.workspaceHelper = wh;
     }
 
+    Status getStatus() {
+        return status;
+    }
+
     private static void printUsage() {
         final HelpFormatter hf = new HelpFormatter();
         hf.printHelp("pshdLocal", options);
@@ -141,6 +172,9 @@ public class PSSyncCommandLine implements IWorkspaceListener {
         options.addOption(new Option("xflow", "xflow", true, "Absolute path to the xflow tool." + printDefault(XilinxSynthesis.XILINX_XFLOW)));
         options.addOption(new Option("com", "comport", true, "The name or path to the serial port"));
         options.addOption(new Option("prg", "programmer", true, "The absolute path to the fpga_programmer executable." + printDefault(ConfigureInvoker.FPGA_PROGRAMMER)));
+        options.addOption(new Option("ws", "workspaces", true,
+                "Runs as daemon for the workspaces listed in the file, one per line as: <workspaceID> <dir> [com=<port>] [secure]"));
+        options.addOption(new Option("ctl", "control", true, "Runs as daemon that accepts commands on this local port: add, remove, list. Connections have to send auth <token> first, the token is written to ~/.pshdl/control.token"));
         options.addOption(new Option("h", "help", false, "Prints this help"));
         return options;
     }
@@ -158,7 +192,8 @@ public class PSSyncCommandLine implements IWorkspaceListener {
 
     @Override
     public void connectionStatus(Status status) {
-        System.out.println("CommandLine.connectionStatus()" + status);
+        this.status = status;
+        System.out.println(prefix + "CommandLine.connectionStatus()" + status);
         if (status == Status.CONNECTED) {
             try {
                 workspaceHelper.announceServices();
@@ -170,21 +205,24 @@ public class PSSyncCommandLine implements IWorkspaceListener {
 
     @Override
     public void doLog(Severity severity, String message) {
-        System.out.println("CommandLine.doLog()" + severity + " " + message);
+        System.out.println(prefix + "CommandLine.doLog()" + severity + " " + message);
     }
 
     @Override
     public void incomingMessage(Message<?> message) {
-        System.out.println("CommandLine.incomingMessage()" + message.subject + " from:" + message.clientID);
+        System.out.println(prefix + "CommandLine.incomingMessage()" + message.subject + " from:" + message.clientID);
     }
 
     @Override
     public void fileOperation(FileOp op, File localFile) {
-        System.out.println("CommandLine.fileOperation()" + op + " with " + localFile);
+        System.out.println(prefix + "CommandLine.fileOperation()" + op + " with " + localFile);
     }
 
     @Override
     public void doLog(Exception e) {
+        if (!prefix.isEmpty()) {
+            System.out.println(prefix + "CommandLine.doLog() " + e);
+        }
         e.printStackTrace();
     }
 
@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+
+import org.pshdl.localhelper.PSSyncCommandLine.Configuration;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+
+/**
+ * Hosts many workspaces in one process. The workspaces share the
+ * {@link SharedResources}: the connections to the server, the transfer
+ * scheduler, the hash index and the inbound threads. The synthesis executor,
+ * the tool registry and the compiler are static and thus shared as well.
+ * Each workspace keeps its own model, journal, queues and listener, and a
+ * workspace that fails does not affect the others.
+ * <p>
+ * Workspaces are read from a file with one workspace per line:
+ *
+ * <pre>
+ * # workspaceID directory [com=port] [secure]
+ * 0123456789ABCDEF /builds/alu com=/dev/ttyUSB0
+ * </pre>
+ *
+ * and can be added and removed at runtime through a control port that only
+ * accepts local connections. As other local users can connect as well, the
+ * first line of a connection has to present the token that the daemon writes
+ * to a file only its owner can read, <code>~/.pshdl/control.token</code> or
+ * the file given with the property PSHDL_CONTROL_TOKEN_FILE. After that it
+ * reads one command per line and answers with <code>OK</code> or
+ * <code>ERROR</code> and a reason:
+ *
+ * <pre>
+ * auth &lt;token&gt;
+ * add &lt;workspaceID&gt; &lt;directory&gt; [com=port] [secure]
+ * remove &lt;workspaceID&gt;
+ * list
+ * </pre>
+ */
+public class PSSyncDaemon {
+
+    private static final class Hosted {
+        public final WorkspaceHelper helper;
+        public final PSSyncCommandLine listener;
+        public final File dir;
+
+        public Hosted(WorkspaceHelper helper, PSSyncCommandLine listener, File dir) {
+            this.helper = helper;
+            this.listener = listener;
+            this.dir = dir;
+        }
+    }
+
+    private final Configuration defaults;
+    private final SharedResources resources = new SharedResources(true);
+    private final Map<String, Hosted> workspaces = Maps.newLinkedHashMap();
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile byte[] token;
+
+    /**
+     * @param defaults
+     *            the paths of the tools and the other settings that are not
+     *            given per workspace
+     */
+    public PSSyncDaemon(Configuration defaults) {
+        this.defaults = defaults;
+    }
+
+    /**
+     * Adds the workspaces listed in the file. A line that can not be added is
+     * reported and skipped.
+     */
+    public void readWorkspaces(File file) throws IOException {
+        int lineNumber = 0;
+        for (final String line : Files.readLines(file, Charsets.UTF_8)) {
+            lineNumber++;
+            final String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            final String error = add(split(trimmed));
+            if (error != null) {
+                System.out.println("PSSyncDaemon.readWorkspaces() " + file + ":" + lineNumber + " " + error);
+            }
+        }
+    }
+
+    /**
+     * @param args
+     *            the workspace ID, the directory and optionally
+     *            <code>com=port</code> and <code>secure</code>
+     * @return <code>null</code> if the workspace was added, the reason
+     *         otherwise
+     */
+    public String add(List<String> args) {
+        if (args.size() < 2) {
+            return "Expected a workspace ID and a directory";
+        }
+        final String wid = args.get(0).toUpperCase();
+        if (!wid.matches("[0-9A-F]+")) {
+            return "The workspace ID should be a 16 digit hexadecimal number";
+        }
+        final Configuration config = new Configuration();
+        config.workspaceID = wid;
+        config.workspaceDir = new File(args.get(1)).getAbsoluteFile();
+        config.synplify = defaults.synplify;
+        config.acttclsh = defaults.acttclsh;
+        config.xflow = defaults.xflow;
+        config.progammer = defaults.progammer;
+        config.secure = defaults.secure;
+        for (final String option : args.subList(2, args.size())) {
+            if (option.startsWith("com=")) {
+                config.comPort = option.substring(4);
+            } else if ("secure".equals(option)) {
+                config.secure = true;
+            } else {
+                return "Unknown option:" + option;
+            }
+        }
+        synchronized (workspaces) {
+            if (workspaces.containsKey(wid)) {
+                return "The workspace is already hosted:" + wid;
+            }
+            for (final Hosted hosted : workspaces.values()) {
+                if (hosted.dir.equals(config.workspaceDir)) {
+                    return "The directory is already used:" + config.workspaceDir;
+                }
+            }
+            if (!config.workspaceDir.exists() && !config.workspaceDir.mkdirs()) {
+                return "Failed to create directory:" + config.workspaceDir;
+            }
+            WorkspaceHelper wh = null;
+            try {
+                final PSSyncCommandLine listener = new PSSyncCommandLine("[" + wid + "] ");
+                wh = new WorkspaceHelper(listener, wid, config.workspaceDir.getAbsolutePath(), config, resources);
+                listener.setWorkspaceHelper(wh);
+                wh.connectTo(wid);
+                workspaces.put(wid, new Hosted(wh, listener, config.workspaceDir));
+            } catch (final Exception e) {
+                e.printStackTrace();
+                if (wh != null) {
+                    wh.dispose();
+                }
+                return "Failed to add the workspace: " + e;
+            }
+        }
+        System.out.println("PSSyncDaemon.add() Hosting " + wid + " in " + config.workspaceDir);
+        return null;
+    }
+
+    /**
+     * @return <code>null</code> if the workspace was removed, the reason
+     *         otherwise
+     */
+    public String remove(String wid) {
+        final Hosted hosted;
+        synchronized (workspaces) {
+            hosted = workspaces.remove(wid.toUpperCase());
+        }
+        if (hosted == null) {
+            return "The workspace is not hosted:" + wid;
+        }
+        hosted.helper.dispose();
+        System.out.println("PSSyncDaemon.remove() Stopped hosting " + wid);
+        return null;
+    }
+
+    /**
+     * @return one line per workspace with its ID, directory and connection
+     *         status
+     */
+    public List<String> list() {
+        final List<String> res = Lists.newArrayList();
+        synchronized (workspaces) {
+            for (final Entry<String, Hosted> e : workspaces.entrySet()) {
+                final Hosted hosted = e.getValue();
+                final long firstSync = hosted.helper.getTimeToFirstSync();
+                res.add(e.getKey() + " " + hosted.dir + " " + hosted.listener.getStatus() + (firstSync >= 0 ? " first sync " + firstSync + "ms" : ""));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Accepts commands on the port of the loopback interface, in a
+     * background thread. A new token is written to the token file first.
+     */
+    public void serveControl(int port) throws IOException {
+        writeToken(tokenFile());
+        final ServerSocket server = new ServerSocket(port, 10, InetAddress.getLoopbackAddress());
+        System.out.println("PSSyncDaemon.serveControl() Accepting commands on " + server.getLocalSocketAddress());
+        Execution.start("PSSyncDaemon-accept", () -> {
+            while (!server.isClosed()) {
+                try {
+                    final Socket socket = server.accept();
+                    Execution.start("PSSyncDaemon-control", () -> serve(socket));
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)) {
+            if (!authenticate(in.readLine())) {
+                out.write("ERROR Expected: auth <token>\n");
+                out.flush();
+                return;
+            }
+            out.write("OK\n");
+            out.flush();
+            String line;
+            while ((line = in.readLine()) != null) {
+                out.write(execute(line));
+                out.flush();
+            }
+        } catch (final IOException e) {
+            // The client went away
+        }
+    }
+
+    public static File tokenFile() {
+        final String path = System.getProperty("PSHDL_CONTROL_TOKEN_FILE");
+        if (path != null) {
+            return new File(path);
+        }
+        return new File(new File(System.getProperty("user.home"), ".pshdl"), "control.token");
+    }
+
+    /**
+     * Writes a new random token to the file. The file is created with owner
+     * only permissions before the token is written to it.
+     */
+    private void writeToken(File file) throws IOException {
+        final byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        final String hex = BaseEncoding.base16().lowerCase().encode(bytes);
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory:" + dir);
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to replace the token file:" + file);
+        }
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            java.nio.file.Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else if (!file.createNewFile() || !file.setReadable(false, false) || !file.setReadable(true, true) || !file.setWritable(false, false)
+                || !file.setWritable(true, true)) {
+            throw new IOException("Failed to restrict the access to the token file:" + file);
+        }
+        java.nio.file.Files.write(file.toPath(), hex.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.TRUNCATE_EXISTING);
+        token = hex.getBytes(StandardCharsets.US_ASCII);
+        System.out.println("PSSyncDaemon.writeToken() Wrote the control token to " + file);
+    }
+
+    private boolean authenticate(String line) {
+        final byte[] expected = token;
+        if ((line == null) || (expected == null)) {
+            return false;
+        }
+        final List<String> args = split(line);
+        if ((args.size() != 2) || !"auth".equalsIgnoreCase(args.get(0))) {
+            return false;
+        }
+        return MessageDigest.isEqual(expected, args.get(1).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static List<String> split(String line) {
+        return Lists.newArrayList(Splitter.on(' ').trimResults().omitEmptyStrings().split(line));
+    }
+
+    /**
+     * @return the answer to the command, one or more lines
+     */
+    public String execute(String command) {
+        final List<String> args = split(command);
+        if (args.isEmpty()) {
+            return "";
+        }
+        final String error;
+        switch (args.get(0).toLowerCase()) {
+        case "add":
+            error = add(args.subList(1, args.size()));
+            break;
+        case "remove":
+            error = args.size() == 2 ? remove(args.get(1)) : "Expected a workspace ID";
+            break;
+        case "list":
+            final StringBuilder sb = new StringBuilder();
+            for (final String ws : list()) {
+                sb.append(ws).append('\n');
+            }
+            return sb.append("OK\n").toString();
+        default:
+            error = "Unknown command:" + args.get(0);
+        }
+        return error == null ? "OK\n" : "ERROR " + error + "\n";
+    }
+
+    /**
+     * Stops hosting all workspaces and releases the shared resources
+     */
+    public void close() {
+        final List<String> wids;
+        synchronized (workspaces) {
+            wids = Lists.newArrayList(workspaces.keySet());
+        }
+        for (final String wid : wids) {
+            remove(wid);
+        }
+        resources.close();
+        closed.countDown();
+    }
+
+    /**
+     * Waits until the daemon is closed
+     */
+    public void awaitClose() throws InterruptedException {
+        closed.await();
+    }
+}
@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+/**
+ * An append only store of the {@link SynthesisMetrics} of every completed synthesis run. Each record has a fixed size and is keyed by a hash of the
+ * settings file, the board and the tool, so that the file can be indexed with a single sequential pass when it is opened. After that,
+ * looking up the baseline of a key does not touch the disk at all.
+ */
+public class QoRHistory {
+    public static final String HISTORY_FILE = ".history";
+    /**
+     * The relative change in percent that is considered a regression. Can be overridden with the property PSHDL_QOR_THRESHOLD
+     */
+    public static final double DEFAULT_THRESHOLD = Double.parseDouble(System.getProperty("PSHDL_QOR_THRESHOLD", "5"));
+    /**
+     * The number of recent runs the baseline is computed from. Can be overridden with the property PSHDL_QOR_WINDOW
+     */
+    public static final int DEFAULT_WINDOW = Integer.getInteger("PSHDL_QOR_WINDOW", 10);
+
+    // key, timestamp, fmax, slack, luts, flipflops, brams, ios, warnings, errors
+    private static final int RECORD_SIZE = (4 * 8) + (6 * 4);
+    private static final int NOT_SET = -1;
+
+    private static final Map<File, QoRHistory> histories = Maps.newHashMap();
+
+    public static class Record {
+        public final long key;
+        public final long timestamp;
+        public final SynthesisMetrics metrics;
+
+        public Record(long key, long timestamp, SynthesisMetrics metrics) {
+            this.key = key;
+            this.timestamp = timestamp;
+            this.metrics = metrics;
+        }
+    }
+
+    private final File historyFile;
+    private final Map<Long, List<Long>> offsets = Maps.newHashMap();
+    private long size;
+
+    private QoRHistory(File historyFile) throws IOException {
+        this.historyFile = historyFile;
+        index();
+    }
+
+    /**
+     * Returns the history for the given synthesis directory. All callers share the same instance, so that concurrent synthesis runs do not
+     * corrupt the file.
+     *
+     * @param synDir
+     *            the directory in which the synthesis results are written
+     * @return the history of that directory
+     * @throws IOException
+     */
+    public static QoRHistory of(File synDir) throws IOException {
+        final File file = new File(synDir, HISTORY_FILE).getAbsoluteFile();
+        synchronized (histories) {
+            QoRHistory history = histories.get(file);
+            if (history == null) {
+                history = new QoRHistory(file);
+                histories.put(file, history);
+            }
+            return history;
+        }
+    }
+
+    public static long key(String settingsFile, String board, String tool) {
+        return Hashing.sha1().hashString(settingsFile + '\0' + board + '\0' + tool, StandardCharsets.UTF_8).asLong();
+    }
+
+    private void index() throws IOException {
+        if (!historyFile.exists()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(historyFile, "r"); FileChannel channel = raf.getChannel()) {
+            // Ignore a partially written record at the end
+            size = channel.size() - (channel.size() % RECORD_SIZE);
+            if (size == 0) {
+                return;
+            }
+            final MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, size);
+            for (long pos = 0; pos < size; pos += RECORD_SIZE) {
+                addOffset(buffer.getLong((int) pos), pos);
+            }
+        }
+    }
+
+    private void addOffset(long key, long pos) {
+        List<Long> list = offsets.get(key);
+        if (list == null) {
+            list = Lists.newArrayList();
+            offsets.put(key, list);
+        }
+        list.add(pos);
+    }
+
+    /**
+     * Appends the metrics of a new run to the history
+     *
+     * @param key
+     *            the key as created by {@link #key(String, String, String)}
+     * @param timestamp
+     *            the time of the run
+     * @param metrics
+     *            the metrics of the run
+     * @throws IOException
+     */
+    public synchronized void append(long key, long timestamp, SynthesisMetrics metrics) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        buffer.putLong(key);
+        buffer.putLong(timestamp);
+        buffer.putDouble(metrics.fmaxMHz != null ? metrics.fmaxMHz : Double.NaN);
+        buffer.putDouble(metrics.worstSlackNs != null ? metrics.worstSlackNs : Double.NaN);
+        buffer.putInt(metrics.luts != null ? metrics.luts : NOT_SET);
+        buffer.putInt(metrics.flipFlops != null ? metrics.flipFlops : NOT_SET);
+        buffer.putInt(metrics.brams != null ? metrics.brams : NOT_SET);
+        buffer.putInt(metrics.ios != null ? metrics.ios : NOT_SET);
+        buffer.putInt(metrics.warnings);
+        buffer.putInt(metrics.errors);
+        buffer.flip();
+        try (RandomAccessFile raf = new RandomAccessFile(historyFile, "rw"); FileChannel channel = raf.getChannel()) {
+            // Overwrite a partially written record if there is one
+            channel.position(size);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.truncate(size + RECORD_SIZE);
+        }
+        addOffset(key, size);
+        size += RECORD_SIZE;
+    }
+
+    /**
+     * Returns the baseline for the given key: the median of each metric over the most recent records. Comparing against several runs finds
+     * a regression that builds up slowly over many runs, and a single outlier does not become the reference.
+     *
+     * @param key
+     *            the key as created by {@link #key(String, String, String)}
+     * @param window
+     *            the maximum number of recent records to use
+     * @return <code>null</code> if there is no record for the key, otherwise a record with the time stamp of the oldest record used
+     * @throws IOException
+     */
+    public synchronized Record baseline(long key, int window) throws IOException {
+        final List<Long> list = offsets.get(key);
+        if ((list == null) || list.isEmpty()) {
+            return null;
+        }
+        final List<Record> records = Lists.newArrayList();
+        try (RandomAccessFile raf = new RandomAccessFile(historyFile, "r"); FileChannel channel = raf.getChannel()) {
+            for (final Long pos : list.subList(Math.max(0, list.size() - window), list.size())) {
+                records.add(read(channel, pos));
+            }
+        }
+        final List<SynthesisMetrics> metrics = Lists.newArrayListWithCapacity(records.size());
+        for (final Record record : records) {
+            metrics.add(record.metrics);
+        }
+        final SynthesisMetrics median = new SynthesisMetrics();
+        median.fmaxMHz = median(metrics, m -> m.fmaxMHz);
+        median.worstSlackNs = median(metrics, m -> m.worstSlackNs);
+        median.luts = toInteger(median(metrics, m -> toDouble(m.luts)));
+        median.flipFlops = toInteger(median(metrics, m -> toDouble(m.flipFlops)));
+        median.brams = toInteger(median(metrics, m -> toDouble(m.brams)));
+        median.ios = toInteger(median(metrics, m -> toDouble(m.ios)));
+        median.warnings = toInteger(median(metrics, m -> (double) m.warnings));
+        median.errors = toInteger(median(metrics, m -> (double) m.errors));
+        return new Record(key, records.get(0).timestamp, median);
+    }
+
+    /**
+     * @return the median of the values that are set, or <code>null</code> if none is
+     */
+    private static Double median(List<SynthesisMetrics> metrics, Function<SynthesisMetrics, Double> field) {
+        final List<Double> values = Lists.newArrayListWithCapacity(metrics.size());
+        for (final SynthesisMetrics m : metrics) {
+            final Double value = field.apply(m);
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        if (values.isEmpty()) {
+            return null;
+        }
+        Collections.sort(values);
+        final int mid = values.size() / 2;
+        if ((values.size() % 2) == 1) {
+            return values.get(mid);
+        }
+        return (values.get(mid - 1) + values.get(mid)) / 2;
+    }
+
+    private static Double toDouble(Integer value) {
+        return value == null ? null : value.doubleValue();
+    }
+
+    private static Integer toInteger(Double value) {
+        return value == null ? null : (int) Math.round(value);
+    }
+
+    /**
+     * Returns all records for the given key, oldest first
+     *
+     * @param key
+     *            the key as created by {@link #key(String, String, String)}
+     * @return the records of that key
+     * @throws IOException
+     */
+    public synchronized List<Record> history(long key) throws IOException {
+        final List<Record> res = Lists.newArrayList();
+        final List<Long> list = offsets.get(key);
+        if (list == null) {
+            return res;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(historyFile, "r"); FileChannel channel = raf.getChannel()) {
+            for (final Long pos : list) {
+                res.add(read(channel, pos));
+            }
+        }
+        return res;
+    }
+
+    private Record read(long pos) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(historyFile, "r"); FileChannel channel = raf.getChannel()) {
+            return read(channel, pos);
+        }
+    }
+
+    private static Record read(FileChannel channel, long pos) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, pos + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of history file at:" + pos);
+            }
+        }
+        buffer.flip();
+        final long key = buffer.getLong();
+        final long timestamp = buffer.getLong();
+        final SynthesisMetrics metrics = new SynthesisMetrics();
+        metrics.fmaxMHz = toDouble(buffer.getDouble());
+        metrics.worstSlackNs = toDouble(buffer.getDouble());
+        metrics.luts = toInt(buffer.getInt());
+        metrics.flipFlops = toInt(buffer.getInt());
+        metrics.brams = toInt(buffer.getInt());
+        metrics.ios = toInt(buffer.getInt());
+        metrics.warnings = buffer.getInt();
+        metrics.errors = buffer.getInt();
+        return new Record(key, timestamp, metrics);
+    }
+
+    private static Double toDouble(double value) {
+        return Double.isNaN(value) ? null : value;
+    }
+
+    private static Integer toInt(int value) {
+        return value == NOT_SET ? null : value;
+    }
+
+    /**
+     * Compares the current metrics with the baseline and describes all values that got worse by more than the threshold
+     *
+     * @param baseline
+     *            the metrics of an earlier run
+     * @param current
+     *            the metrics of the new run
+     * @param thresholdPercent
+     *            the relative change in percent that is tolerated
+     * @return a human readable description of each regression, empty if there is none
+     */
+    public static List<String> findRegressions(SynthesisMetrics baseline, SynthesisMetrics current, double thresholdPercent) {
+        final List<String> res = Lists.newArrayList();
+        if ((baseline.fmaxMHz != null) && (current.fmaxMHz != null)) {
+            final double change = percentChange(baseline.fmaxMHz, current.fmaxMHz);
+            if (change < -thresholdPercent) {
+                res.add(String.format("Fmax dropped from %.2f MHz to %.2f MHz (%.1f%%)", baseline.fmaxMHz, current.fmaxMHz, change));
+            }
+        }
+        if ((baseline.worstSlackNs != null) && (current.worstSlackNs != null) && (baseline.worstSlackNs >= 0) && (current.worstSlackNs < 0)) {
+            res.add(String.format("Worst slack became negative: %.3f ns (was %.3f ns)", current.worstSlackNs, baseline.worstSlackNs));
+        }
+        checkIncrease(res, "LUTs", baseline.luts, current.luts, thresholdPercent);
+        checkIncrease(res, "Flip-flops", baseline.flipFlops, current.flipFlops, thresholdPercent);
+        checkIncrease(res, "BRAMs", baseline.brams, current.brams, thresholdPercent);
+        checkIncrease(res, "IOs", baseline.ios, current.ios, thresholdPercent);
+        checkIncrease(res, "Warnings", baseline.warnings, current.warnings, thresholdPercent);
+        return res;
+    }
+
+    private static void checkIncrease(List<String> res, String name, Integer baseline, Integer current, double thresholdPercent) {
+        if ((baseline == null) || (current == null) || (current <= baseline)) {
+            return;
+        }
+        final double change = percentChange(baseline, current);
+        if (change > thresholdPercent) {
+            res.add(String.format("%s increased from %d to %d (+%.1f%%)", name, baseline, current, change));
+        }
+    }
+
+    private static double percentChange(double baseline, double current) {
+        if (baseline == 0) {
+            return current == 0 ? 0 : Double.POSITIVE_INFINITY;
+        }
+        return ((current - baseline) / Math.abs(baseline)) * 100;
+    }
+}
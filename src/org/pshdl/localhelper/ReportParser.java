@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.regex.Matcher;
+
+/**
+ * Extracts {@link SynthesisMetrics} from the reports of a vendor tool. The parser is fed line by line, either from the output of a running
+ * process or from a report file. Report files are memory mapped and decoded into a single reused line buffer, so that even large reports
+ * are never turned into Strings.
+ */
+public abstract class ReportParser {
+    private static final int MAP_WINDOW = 16 * 1024 * 1024;
+
+    protected final SynthesisMetrics metrics = new SynthesisMetrics();
+    private char[] line = new char[256];
+    private CharBuffer lineBuffer = CharBuffer.wrap(line);
+
+    /**
+     * A decimal number, optionally negative. Tighter than a character class, so that a lone dot never reaches
+     * {@link Double#parseDouble(String)}
+     */
+    protected static final String DECIMAL = "-?\\d+(?:\\.\\d+)?";
+    /**
+     * An integer with optional thousands separators
+     */
+    protected static final String COUNT = "\\d[\\d,]*";
+
+    /**
+     * Inspects a single line of a report. A line that can not be parsed is skipped, the metrics are a by-product and must never break
+     * the synthesis or stop the output of the tool from being drained.
+     *
+     * @param line
+     *            the line without line terminator, only valid for the duration of the call
+     */
+    public final void parseLine(CharSequence line) {
+        try {
+            parseMetrics(line);
+        } catch (final RuntimeException e) {
+            // Numbers out of range or unexpected formats
+        }
+    }
+
+    /**
+     * Extracts the metrics of a single line
+     *
+     * @see #parseLine(CharSequence)
+     */
+    protected abstract void parseMetrics(CharSequence line);
+
+    public SynthesisMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Parses the given report file if it exists.
+     *
+     * @param report
+     *            the report to parse
+     * @throws IOException
+     */
+    public void parseFile(File report) throws IOException {
+        if (!report.isFile()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(report, "r"); FileChannel channel = raf.getChannel()) {
+            final long size = channel.size();
+            int length = 0;
+            for (long pos = 0; pos < size; pos += MAP_WINDOW) {
+                final MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos));
+                while (buffer.hasRemaining()) {
+                    // Reports are plain ASCII, so decoding them as ISO-8859-1 is loss free for everything we match
+                    final char c = (char) (buffer.get() & 0xFF);
+                    if (c == '\n') {
+                        emitLine(length);
+                        length = 0;
+                    } else if (c != '\r') {
+                        if (length == line.length) {
+                            final char[] newLine = new char[line.length * 2];
+                            System.arraycopy(line, 0, newLine, 0, length);
+                            line = newLine;
+                            lineBuffer = CharBuffer.wrap(line);
+                        }
+                        line[length++] = c;
+                    }
+                }
+            }
+            if (length > 0) {
+                emitLine(length);
+            }
+        }
+    }
+
+    private void emitLine(int length) {
+        lineBuffer.clear();
+        lineBuffer.limit(length);
+        parseLine(lineBuffer);
+    }
+
+    protected static boolean find(Matcher matcher, CharSequence line) {
+        return matcher.reset(line).find();
+    }
+
+    protected static boolean startsWith(CharSequence line, String prefix) {
+        if (line.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static int parseInt(String number) {
+        return Integer.parseInt(number.replace(",", ""));
+    }
+
+    protected void updateWorstSlack(double slack) {
+        if ((metrics.worstSlackNs == null) || (slack < metrics.worstSlackNs)) {
+            metrics.worstSlackNs = slack;
+        }
+    }
+
+    protected void updateFmax(double fmax) {
+        if ((metrics.fmaxMHz == null) || (fmax < metrics.fmaxMHz)) {
+            metrics.fmaxMHz = fmax;
+        }
+    }
+}
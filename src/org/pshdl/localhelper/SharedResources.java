@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.pshdl.localhelper.transport.Endpoints;
+import org.pshdl.localhelper.transport.ITransport;
+import org.pshdl.localhelper.transport.Transports;
+import org.pshdl.model.utils.HDLCore;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The resources that do not depend on a workspace: the transport and the
+ * transfer scheduler per server, the hash index, the threads that apply
+ * inbound changes, and whether a synthesis tool is available. A process that
+ * hosts several workspaces creates one shared instance for all of them. The
+ * state of a workspace, its model, journal and queues, is never kept here.
+ */
+public class SharedResources {
+
+    private static final int INBOUND_THREADS = Integer.getInteger("PSHDL_INBOUND_THREADS", 4);
+
+    private final boolean shared;
+    private final Map<String, ITransport> transports = Maps.newHashMap();
+    private final Map<String, TransferScheduler> schedulers = Maps.newHashMap();
+    private final HashIndex hashIndex = new HashIndex();
+    private ExecutorService inboundWorkers;
+    private ExecutorService inboundControl;
+    private Boolean synthesisAvailable;
+
+    /**
+     * @param shared
+     *            whether the resources are used by more than one workspace.
+     *            The transports of shared resources are only closed by
+     *            {@link #close()}, otherwise they are closed with the
+     *            connection.
+     */
+    public SharedResources(boolean shared) {
+        this.shared = shared;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    public synchronized ITransport getTransport(Endpoints endpoints) {
+        final String key = endpoints.getBaseURL();
+        ITransport transport = transports.get(key);
+        if (transport == null) {
+            transport = Transports.create(endpoints);
+            transports.put(key, transport);
+        }
+        return transport;
+    }
+
+    /**
+     * The scheduler adapts to the connection to a server, so it is shared by
+     * all workspaces on that server
+     */
+    public synchronized TransferScheduler getTransferScheduler(Endpoints endpoints) {
+        final String key = endpoints.getBaseURL();
+        TransferScheduler scheduler = schedulers.get(key);
+        if (scheduler == null) {
+            scheduler = TransferScheduler.fromProperties();
+            schedulers.put(key, scheduler);
+        }
+        return scheduler;
+    }
+
+    /**
+     * The index is keyed by absolute path, so workspaces do not see each
+     * others entries
+     */
+    public HashIndex getHashIndex() {
+        return hashIndex;
+    }
+
+    /**
+     * Creates the queue of inbound changes for a workspace. The queue and its
+     * bound belong to the workspace, the threads that execute it are shared.
+     */
+    public synchronized KeyedExecutor createInboundExecutor(int capacity, WorkspaceHelper.IWorkspaceListener listener) {
+        if (!shared) {
+            return new KeyedExecutor("Inbound", INBOUND_THREADS, capacity, listener);
+        }
+        if (inboundWorkers == null) {
+            inboundWorkers = Executors.newFixedThreadPool(INBOUND_THREADS, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Inbound-%d").build());
+            inboundControl = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Inbound-control-%d").build());
+        }
+        return new KeyedExecutor(inboundWorkers, inboundControl, capacity, listener);
+    }
+
+    /**
+     * Probes the synthesis tools. Shared resources probe only once, the
+     * answer is the same for all workspaces.
+     */
+    public synchronized boolean isSynthesisAvailable() {
+        if ((synthesisAvailable == null) || !shared) {
+            boolean available = false;
+            final Collection<ISynthesisTool> tools = HDLCore.getAllImplementations(ISynthesisTool.class);
+            for (final ISynthesisTool synthesisTool : tools) {
+                if (synthesisTool.isSynthesisAvailable()) {
+                    available = true;
+                }
+            }
+            synthesisAvailable = available;
+        }
+        return synthesisAvailable;
+    }
+
+    public synchronized void close() {
+        for (final ITransport transport : transports.values()) {
+            try {
+                transport.close();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+        transports.clear();
+        if (inboundWorkers != null) {
+            inboundWorkers.shutdown();
+            inboundControl.shutdown();
+            inboundWorkers = null;
+            inboundControl = null;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.pshdl.localhelper.SynthesisInvoker.IProgressReporter;
+import org.pshdl.rest.models.CompileInfo;
+import org.pshdl.rest.models.FileRecord;
+import org.pshdl.rest.models.ProgressFeedback.ProgressType;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Wraps a reporter and turns the stages of a synthesis into continuous progress. While a stage is running, the progress is interpolated
+ * between the start and the end of the stage based on the predicted duration of the {@link StageTimingModel}, and the remaining time of the
+ * stage and of the whole run is appended to each progress message.
+ * <p>
+ * The updates are computed while holding the monitor of the reporter, but sent without it. The shared ticker only schedules the periodic
+ * update, it is sent by a thread of its own, so a slow server does not delay the progress of other synthesis runs.
+ */
+public class StageProgressReporter implements IProgressReporter {
+    private static final long TICK_SECONDS = 5;
+    /**
+     * A stage that takes this many times longer than predicted is reported as overdue
+     */
+    private static final int OVERDUE_FACTOR = 3;
+    /**
+     * Only schedules the ticks and never blocks, the updates are sent by the
+     * sender
+     */
+    private static final ScheduledExecutorService ticker = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("StageProgress").build());
+    private static final ExecutorService sender = Execution.newExecutor("StageProgressSender");
+
+    private static class Update {
+        public final ProgressType type;
+        public final Double progress;
+        public final String message;
+
+        public Update(ProgressType type, Double progress, String message) {
+            this.type = type;
+            this.progress = progress;
+            this.message = message;
+        }
+    }
+
+    private final IProgressReporter delegate;
+    private final StageTimingModel model;
+    private final String key;
+    private final long designSize;
+
+    private String stage;
+    private double startProgress;
+    private double endProgress;
+    private long stageStart;
+    private long predicted;
+    private boolean firstStage = true;
+    private boolean overdueReported;
+    private ScheduledFuture<?> tick;
+    /**
+     * Keeps the updates in the order in which they were computed
+     */
+    private final Object sendLock = new Object();
+    private final AtomicBoolean tickPending = new AtomicBoolean();
+
+    public StageProgressReporter(IProgressReporter delegate, StageTimingModel model, String key, long designSize) {
+        this.delegate = delegate;
+        this.model = model;
+        this.key = key;
+        this.designSize = designSize;
+    }
+
+    public static long designSize(Iterable<File> files) {
+        long sum = 0;
+        for (final File file : files) {
+            sum += file.length();
+        }
+        return sum;
+    }
+
+    @Override
+    public void stageStarted(final String stage, double startProgress, double endProgress) throws IOException {
+        synchronized (sendLock) {
+            final List<Update> updates;
+            synchronized (this) {
+                this.stage = stage;
+                this.startProgress = startProgress;
+                this.endProgress = endProgress;
+                this.stageStart = System.currentTimeMillis();
+                this.predicted = model.predict(key, stage, designSize);
+                this.overdueReported = false;
+                updates = prepare(ProgressType.progress, startProgress, "Starting " + stage);
+                tick = ticker.scheduleAtFixedRate(this::scheduleTick, TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+            }
+            send(updates);
+        }
+    }
+
+    private void scheduleTick() {
+        // Skip the tick if the previous one was not sent yet
+        if (tickPending.compareAndSet(false, true)) {
+            sender.execute(() -> {
+                try {
+                    onTick();
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    tickPending.set(false);
+                }
+            });
+        }
+    }
+
+    private void onTick() throws IOException {
+        synchronized (sendLock) {
+            final List<Update> updates;
+            synchronized (this) {
+                if (stage == null) {
+                    return;
+                }
+                updates = prepare(ProgressType.progress, startProgress, stage);
+            }
+            send(updates);
+        }
+    }
+
+    @Override
+    public synchronized void stageFinished(String stage, boolean success) {
+        if (tick != null) {
+            tick.cancel(false);
+            tick = null;
+        }
+        if (success) {
+            model.record(key, stage, designSize, System.currentTimeMillis() - stageStart, firstStage);
+            firstStage = false;
+        }
+        this.stage = null;
+    }
+
+    @Override
+    public void reportProgress(ProgressType type, Double progress, String message) throws IOException {
+        synchronized (sendLock) {
+            final List<Update> updates;
+            synchronized (this) {
+                updates = prepare(type, progress, message);
+            }
+            send(updates);
+        }
+    }
+
+    private void send(List<Update> updates) throws IOException {
+        for (final Update update : updates) {
+            delegate.reportProgress(update.type, update.progress, update.message);
+        }
+    }
+
+    private List<Update> prepare(ProgressType type, Double progress, String message) {
+        final List<Update> updates = Lists.newArrayListWithCapacity(2);
+        if ((stage != null) && (type == ProgressType.progress) && (progress != null)) {
+            final long elapsed = System.currentTimeMillis() - stageStart;
+            if (predicted > 0) {
+                // Never claim that a stage is done before it actually is
+                final double fraction = Math.min(0.95, (double) elapsed / predicted);
+                progress = Math.max(progress, startProgress + ((endProgress - startProgress) * fraction));
+                final long stageRemaining = Math.max(0, predicted - elapsed);
+                final long totalRemaining = stageRemaining + model.predictRemaining(key, stage, designSize);
+                message = message + " (ETA " + formatDuration(stageRemaining) + ", total " + formatDuration(totalRemaining) + ")";
+                if ((elapsed > (OVERDUE_FACTOR * predicted)) && !overdueReported) {
+                    overdueReported = true;
+                    updates.add(new Update(ProgressType.output, null,
+                            "The stage " + stage + " runs for " + formatDuration(elapsed) + " but usually takes " + formatDuration(predicted) + ", the tool might hang"));
+                }
+            } else {
+                message = message + " (running for " + formatDuration(elapsed) + ", no estimate yet)";
+            }
+        }
+        updates.add(new Update(type, progress, message));
+        return updates;
+    }
+
+    public static String formatDuration(long millis) {
+        final long seconds = millis / 1000;
+        if (seconds < 60) {
+            return seconds + "s";
+        }
+        return (seconds / 60) + "m " + (seconds % 60) + "s";
+    }
+
+    @Override
+    public FileRecord reportFile(CompileInfo info, File datFile, String datRelPath) throws IOException {
+        return delegate.reportFile(info, datFile, datRelPath);
+    }
+
+    @Override
+    public void reportResult(CompileInfo compileInfo) throws IOException {
+        delegate.reportResult(compileInfo);
+    }
+
+    @Override
+    public void reportMetrics(CompileInfo info, SynthesisMetrics metrics) throws IOException {
+        delegate.reportMetrics(info, metrics);
+    }
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Remembers how long each stage of a synthesis took for a given design, board and tool. The durations are kept as exponentially weighted
+ * averages, both absolute and relative to the size of the design, so that a prediction is possible as soon as a single run finished.
+ */
+public class StageTimingModel {
+    public static final String STAGES_FILE = ".stages";
+    private static final double WEIGHT = 0.3;
+
+    private static final Map<File, StageTimingModel> models = Maps.newHashMap();
+
+    public static class StageTiming {
+        @JsonProperty
+        public double millis;
+        @JsonProperty
+        public double millisPerKB;
+        @JsonProperty
+        public int samples;
+    }
+
+    public static class DesignTimings {
+        /**
+         * The stages in the order in which they were run the last time
+         */
+        @JsonProperty
+        public List<String> stageOrder = Lists.newArrayList();
+        @JsonProperty
+        public Map<String, StageTiming> stages = Maps.newLinkedHashMap();
+    }
+
+    private final File stagesFile;
+    private final Map<String, DesignTimings> timings;
+
+    private StageTimingModel(File stagesFile) {
+        this.stagesFile = stagesFile;
+        Map<String, DesignTimings> read = null;
+        if (stagesFile.exists()) {
+            try {
+                read = JSONHelper.getMapper().readValue(stagesFile, new TypeReference<Map<String, DesignTimings>>() {
+                });
+            } catch (final IOException e) {
+                System.err.println("Failed to read stage timings from:" + stagesFile + " starting from scratch " + e);
+            }
+        }
+        if (read == null) {
+            read = Maps.newLinkedHashMap();
+        }
+        this.timings = read;
+    }
+
+    /**
+     * Returns the model for the given synthesis directory. All callers share the same instance.
+     *
+     * @param synDir
+     *            the directory in which the synthesis results are written
+     * @return the model of that directory
+     */
+    public static StageTimingModel of(File synDir) {
+        final File file = new File(synDir, STAGES_FILE).getAbsoluteFile();
+        synchronized (models) {
+            StageTimingModel model = models.get(file);
+            if (model == null) {
+                model = new StageTimingModel(file);
+                models.put(file, model);
+            }
+            return model;
+        }
+    }
+
+    public static String key(String design, String board, String tool) {
+        return design + '|' + board + '|' + tool;
+    }
+
+    /**
+     * Predicts the duration of a stage
+     *
+     * @param key
+     *            the key as created by {@link #key(String, String, String)}
+     * @param stage
+     *            the name of the stage
+     * @param designSizeBytes
+     *            the size of all sources of the design, or 0 if unknown
+     * @return the predicted duration in ms, or -1 if the stage never ran before
+     */
+    public synchronized long predict(String key, String stage, long designSizeBytes) {
+        final DesignTimings design = timings.get(key);
+        if (design == null) {
+            return -1;
+        }
+        final StageTiming timing = design.stages.get(stage);
+        if ((timing == null) || (timing.samples == 0)) {
+            return -1;
+        }
+        if ((designSizeBytes > 0) && (timing.millisPerKB > 0)) {
+            return (long) ((timing.millisPerKB * designSizeBytes) / 1024);
+        }
+        return (long) timing.millis;
+    }
+
+    /**
+     * Predicts the duration of all stages that followed the given stage in the last run
+     *
+     * @return the predicted duration in ms of all remaining stages
+     */
+    public synchronized long predictRemaining(String key, String stage, long designSizeBytes) {
+        final DesignTimings design = timings.get(key);
+        if (design == null) {
+            return 0;
+        }
+        long sum = 0;
+        final int idx = design.stageOrder.indexOf(stage);
+        for (int i = idx + 1; i < design.stageOrder.size(); i++) {
+            sum += Math.max(0, predict(key, design.stageOrder.get(i), designSizeBytes));
+        }
+        return sum;
+    }
+
+    /**
+     * Records the duration of a stage and persists the model
+     *
+     * @param key
+     *            the key as created by {@link #key(String, String, String)}
+     * @param stage
+     *            the name of the stage
+     * @param designSizeBytes
+     *            the size of all sources of the design, or 0 if unknown
+     * @param millis
+     *            the duration of the stage
+     * @param firstStage
+     *            <code>true</code> when this is the first stage of a run. This resets the recorded stage order
+     */
+    public synchronized void record(String key, String stage, long designSizeBytes, long millis, boolean firstStage) {
+        DesignTimings design = timings.get(key);
+        if (design == null) {
+            design = new DesignTimings();
+            timings.put(key, design);
+        }
+        if (firstStage) {
+            design.stageOrder.clear();
+        }
+        if (!design.stageOrder.contains(stage)) {
+            design.stageOrder.add(stage);
+        }
+        StageTiming timing = design.stages.get(stage);
+        if (timing == null) {
+            timing = new StageTiming();
+            design.stages.put(stage, timing);
+        }
+        final double perKB = designSizeBytes > 0 ? (millis * 1024.0) / designSizeBytes : 0;
+        if (timing.samples == 0) {
+            timing.millis = millis;
+            timing.millisPerKB = perKB;
+        } else {
+            timing.millis = (WEIGHT * millis) + ((1 - WEIGHT) * timing.millis);
+            timing.millisPerKB = (WEIGHT * perKB) + ((1 - WEIGHT) * timing.millisPerKB);
+        }
+        timing.samples++;
+        try {
+            JSONHelper.getWriter().writeValue(stagesFile, timings);
+        } catch (final IOException e) {
+            System.err.println("Failed to write stage timings to:" + stagesFile + " " + e);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.pshdl.localhelper.ConnectionHelper.Status;
+import org.pshdl.localhelper.PSSyncCommandLine.Configuration;
+import org.pshdl.localhelper.WorkspaceHelper.FileOp;
+import org.pshdl.localhelper.WorkspaceHelper.IWorkspaceListener;
+import org.pshdl.localhelper.WorkspaceHelper.Severity;
+import org.pshdl.localhelper.actel.ActelSynthesis;
+import org.pshdl.rest.models.Message;
+import org.pshdl.rest.models.RepoInfo;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * The training run for the class data sharing archive of the
+ * <code>appcds</code> profile. It goes through the startup of the sync client
+ * and of the synthesis command line, so that the classes they load end up in
+ * the archive. No server is needed, the connection is made to a closed local
+ * port and fails.
+ * <p>
+ * The optional argument is a file to which the Java home of the training run
+ * is written, the launcher only uses the archive with that Java.
+ */
+public class StartupTraining {
+
+    public static void main(String[] args) throws Exception {
+        final long start = System.nanoTime();
+        if (System.getProperty("PSHDL_SERVER") == null) {
+            System.setProperty("PSHDL_SERVER", "127.0.0.1:1");
+        }
+        trainSyncClient();
+        trainSynthesis();
+        if (args.length > 0) {
+            Files.write(System.getProperty("java.home"), new File(args[0]), Charsets.UTF_8);
+        }
+        System.out.println("StartupTraining.main() Done in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        // The connection threads are daemons, but the executors are not
+        System.exit(0);
+    }
+
+    private static void trainSyncClient() throws IOException, InterruptedException {
+        final File dir = Files.createTempDir();
+        try {
+            final Configuration config = new Configuration();
+            config.acttclsh = ActelSynthesis.ACTEL_TCLSH;
+            config.synplify = ActelSynthesis.SYNPLIFY;
+            final CountDownLatch done = new CountDownLatch(1);
+            final IWorkspaceListener listener = new IWorkspaceListener() {
+
+                @Override
+                public void connectionStatus(Status status) {
+                    if ((status == Status.ERROR) || (status == Status.CONNECTED)) {
+                        done.countDown();
+                    }
+                }
+
+                @Override
+                public void doLog(Severity severity, String message) {
+                }
+
+                @Override
+                public void incomingMessage(Message<?> message) {
+                }
+
+                @Override
+                public void fileOperation(FileOp op, File localFile) {
+                }
+
+                @Override
+                public void doLog(Exception e) {
+                }
+            };
+            final WorkspaceHelper wh = new WorkspaceHelper(listener, null, dir.getAbsolutePath(), config);
+            // The messages are parsed and dispatched on every event
+            final ObjectWriter writer = JSONHelper.getWriter();
+            final String json = writer.writeValueAsString(new Message<>(Message.SERVICE_DISCOVER, Message.SERVICE_DISCOVER, null, "training"));
+            JSONHelper.getReader(Message.class).readValue(json);
+            JSONHelper.getReader(RepoInfo.class).readValue("{}");
+            wh.connectTo("0000000000000000");
+            done.await(30, TimeUnit.SECONDS);
+            wh.dispose();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void trainSynthesis() throws Exception {
+        // Loads the synthesis tools and the VHDL compiler, then stops at the
+        // missing settings
+        final SynthesisOutputProvider provider = new SynthesisOutputProvider();
+        provider.invoke(provider.getUsage().parse(new String[0]));
+    }
+}
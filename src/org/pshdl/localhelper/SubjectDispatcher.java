@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Finds the handlers for the subject of a message. A handler registered for
+ * a subject like <code>WORK</code> receives all messages whose subject
+ * starts with the segments <code>WORK:</code>, handlers of shorter prefixes
+ * come first.
+ * <p>
+ * The registered subjects are compiled into a trie that is replaced as a
+ * whole when a handler is registered or removed. Dispatching reads the
+ * current trie without locking and compares the segments in place, so it
+ * does not allocate.
+ */
+public class SubjectDispatcher<H> {
+
+    private static final char SEPARATOR = ':';
+
+    private static final class Node<H> {
+        private final String segment;
+        private final ImmutableList<Node<H>> children;
+        /**
+         * The handlers of this node and all its parents, shortest prefix
+         * first
+         */
+        private final ImmutableList<H> handlers;
+
+        private Node(String segment, ImmutableList<Node<H>> children, ImmutableList<H> handlers) {
+            this.segment = segment;
+            this.children = children;
+            this.handlers = handlers;
+        }
+
+        private Node<H> child(String subject, int start, int end) {
+            final int length = end - start;
+            // Indexed, so that no iterator is allocated
+            for (int i = 0; i < children.size(); i++) {
+                final Node<H> child = children.get(i);
+                final String segment = child.segment;
+                if ((segment.length() == length) && subject.regionMatches(start, segment, 0, length)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Only changed while holding the lock of the dispatcher, in the order of
+     * registration
+     */
+    private final Map<String, H> registered = Maps.newLinkedHashMap();
+    private volatile Node<H> root = compile(registered);
+
+    /**
+     * @return the handlers for the subject, shortest prefix first. The list
+     *         is shared and must not be changed.
+     */
+    public ImmutableList<H> resolve(String subject) {
+        Node<H> node = root;
+        int start = 0;
+        while (true) {
+            int end = subject.indexOf(SEPARATOR, start);
+            if (end == -1) {
+                end = subject.length();
+            }
+            final Node<H> child = node.child(subject, start, end);
+            if (child == null) {
+                return node.handlers;
+            }
+            node = child;
+            if (end == subject.length()) {
+                return node.handlers;
+            }
+            start = end + 1;
+        }
+    }
+
+    public H get(String subject) {
+        synchronized (this) {
+            return registered.get(subject);
+        }
+    }
+
+    public void register(String subject, H handler) {
+        synchronized (this) {
+            registered.put(subject, handler);
+            root = compile(registered);
+        }
+    }
+
+    public void registerAll(Map<String, ? extends H> handlers) {
+        synchronized (this) {
+            registered.putAll(handlers);
+            root = compile(registered);
+        }
+    }
+
+    /**
+     * @return the handler that was registered for exactly this subject
+     */
+    public H unregister(String subject) {
+        synchronized (this) {
+            final H removed = registered.remove(subject);
+            if (removed != null) {
+                root = compile(registered);
+            }
+            return removed;
+        }
+    }
+
+    private static final class Builder<H> {
+        private final String segment;
+        private final Map<String, Builder<H>> children = Maps.newLinkedHashMap();
+        private H handler;
+
+        private Builder(String segment) {
+            this.segment = segment;
+        }
+
+        private Node<H> build(ImmutableList<H> parentHandlers) {
+            ImmutableList<H> handlers = parentHandlers;
+            if (handler != null) {
+                handlers = ImmutableList.<H> builder().addAll(parentHandlers).add(handler).build();
+            }
+            final ImmutableList.Builder<Node<H>> nodes = ImmutableList.builder();
+            for (final Builder<H> child : children.values()) {
+                nodes.add(child.build(handlers));
+            }
+            return new Node<>(segment, nodes.build(), handlers);
+        }
+    }
+
+    private static <H> Node<H> compile(Map<String, H> registered) {
+        final Builder<H> root = new Builder<>("");
+        for (final Map.Entry<String, H> e : registered.entrySet()) {
+            final String subject = e.getKey();
+            Builder<H> node = root;
+            int start = 0;
+            while (true) {
+                int end = subject.indexOf(SEPARATOR, start);
+                if (end == -1) {
+                    end = subject.length();
+                }
+                final String segment = subject.substring(start, end);
+                Builder<H> child = node.children.get(segment);
+                if (child == null) {
+                    child = new Builder<>(segment);
+                    node.children.put(segment, child);
+                }
+                node = child;
+                if (end == subject.length()) {
+                    break;
+                }
+                start = end + 1;
+            }
+            node.handler = e.getValue();
+        }
+        return root.build(ImmutableList.<H> of());
+    }
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * Decides which paths of the workspace are mirrored eagerly and which are
+ * only recorded and fetched once a local consumer asks for them. The rules
+ * are read from a <code>.pshdlsync</code> file in the workspace, one rule per
+ * line of the form <code>eager &lt;glob&gt;</code> or
+ * <code>lazy &lt;glob&gt;</code>. The last matching rule wins, paths that no
+ * rule matches are eager. A glob may contain <code>**</code> for any number
+ * of directories, <code>*</code> and <code>?</code> within a name, a glob
+ * ending in <code>/</code> matches everything below the directory. Lines
+ * starting with <code>#</code> are comments.
+ */
+public class SyncRules {
+
+    public static final String RULES_FILE = ".pshdlsync";
+    /**
+     * The generated outputs are rarely looked at locally, and the synthesis
+     * generates the ones it needs itself
+     */
+    private static final String DEFAULT_RULES = "lazy src-gen/";
+
+    private static final class Rule {
+        private final Pattern pattern;
+        private final boolean eager;
+
+        private Rule(Pattern pattern, boolean eager) {
+            this.pattern = pattern;
+            this.eager = eager;
+        }
+    }
+
+    private final List<Rule> rules = Lists.newArrayList();
+
+    public SyncRules(List<String> lines) {
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] split = line.split("\\s+", 2);
+            if ((split.length != 2) || !("eager".equals(split[0]) || "lazy".equals(split[0]))) {
+                throw new IllegalArgumentException("Invalid sync rule, expected 'eager <glob>' or 'lazy <glob>':" + line);
+            }
+            rules.add(new Rule(compileGlob(split[1]), "eager".equals(split[0])));
+        }
+    }
+
+    /**
+     * Reads the rules of the workspace. Without a rules file the defaults
+     * apply, if <code>PSHDL_SYNC_ALL</code> is set everything is eager.
+     */
+    public static SyncRules read(File workspaceDir) throws IOException {
+        final List<String> lines = Lists.newArrayList();
+        if (!Boolean.getBoolean("PSHDL_SYNC_ALL")) {
+            lines.add(DEFAULT_RULES);
+        }
+        final File rulesFile = new File(workspaceDir, RULES_FILE);
+        if (rulesFile.exists()) {
+            lines.addAll(Files.readLines(rulesFile, Charsets.UTF_8));
+        }
+        return new SyncRules(lines);
+    }
+
+    public boolean isEager(String relPath) {
+        for (int i = rules.size() - 1; i >= 0; i--) {
+            final Rule rule = rules.get(i);
+            if (rule.pattern.matcher(relPath).matches()) {
+                return rule.eager;
+            }
+        }
+        return true;
+    }
+
+    public static Pattern compileGlob(String glob) {
+        if (glob.endsWith("/")) {
+            glob = glob + "**";
+        }
+        if (glob.startsWith("/")) {
+            glob = glob.substring(1);
+        }
+        return Pattern.compile(globToRegex(glob));
+    }
+
+    /**
+     * Converts a glob into a regular expression. <code>**</code> matches any
+     * number of directories, <code>*</code> and <code>?</code> match within a
+     * name and <code>[...]</code> is a character class.
+     */
+    public static String globToRegex(String glob) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+            switch (c) {
+            case '*':
+                if (((i + 1) < glob.length()) && (glob.charAt(i + 1) == '*')) {
+                    i++;
+                    if (((i + 1) < glob.length()) && (glob.charAt(i + 1) == '/')) {
+                        // **/ matches no directory as well
+                        i++;
+                        sb.append("(?:.*/)?");
+                    } else {
+                        sb.append(".*");
+                    }
+                } else {
+                    sb.append("[^/]*");
+                }
+                break;
+            case '?':
+                sb.append("[^/]");
+                break;
+            case '[':
+                final int end = glob.indexOf(']', i + 2);
+                if (end == -1) {
+                    sb.append(Pattern.quote("["));
+                    break;
+                }
+                String chars = glob.substring(i + 1, end);
+                sb.append('[');
+                if (chars.startsWith("!")) {
+                    sb.append('^');
+                    chars = chars.substring(1);
+                }
+                sb.append(chars.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                i = end;
+                break;
+            case '\\':
+                if ((i + 1) < glob.length()) {
+                    i++;
+                    sb.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                }
+                break;
+            default:
+                sb.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return sb.toString();
+    }
+}
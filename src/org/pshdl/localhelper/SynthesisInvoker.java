@@ -33,19 +33,25 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.cli.CommandLine;
 import org.pshdl.localhelper.WorkspaceHelper.IWorkspaceListener;
 import org.pshdl.localhelper.WorkspaceHelper.MessageHandler;
+import org.pshdl.localhelper.WorkspaceModel.Snapshot;
 import org.pshdl.model.HDLArgument;
 import org.pshdl.model.HDLAssignment;
 import org.pshdl.model.HDLExport;
@@ -72,7 +78,6 @@ import org.pshdl.model.utils.HDLQualifiedName;
 import org.pshdl.model.utils.HDLQuery;
 import org.pshdl.model.validation.Problem;
 import org.pshdl.rest.models.CompileInfo;
-import org.pshdl.rest.models.FileInfo;
 import org.pshdl.rest.models.FileRecord;
 import org.pshdl.rest.models.Message;
 import org.pshdl.rest.models.ProgressFeedback;
@@ -94,6 +99,12 @@ public class SynthesisInvoker implements MessageHandler<String> {
     private static Executor executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
 
     public static final String SYNTHESIS_CREATOR = "Synthesis";
+    /**
+     * The type of the {@link Message#SYNTHESIS_PROGRESS} messages that carry
+     * {@link SynthesisMetrics}, as {@link ProgressType#report} is reserved for
+     * {@link FileRecord}s
+     */
+    public static final String METRICS_TYPE = "SynthesisMetrics";
 
     public class SynJob implements Runnable, IProgressReporter {
 
@@ -103,14 +114,17 @@ public class SynthesisInvoker implements MessageHandler<String> {
         private final File workspaceDir;
         private final String settingsFile;
         private final String workspaceID;
-        private final RepoInfo repo;
+        private final Snapshot files;
+        private String vendor;
+        private SynthesisMetrics metrics;
+        private boolean completed;
 
-        public SynJob(SynthesisSettings settings, String settingsFile, File workspaceDir, String workspaceID, RepoInfo repo) {
+        public SynJob(SynthesisSettings settings, String settingsFile, File workspaceDir, String workspaceID, Snapshot files) {
             this.settings = settings;
             this.settingsFile = settingsFile;
             this.workspaceDir = workspaceDir;
             this.workspaceID = workspaceID;
-            this.repo = repo;
+            this.files = files;
         }
 
         @Override
@@ -119,21 +133,33 @@ public class SynthesisInvoker implements MessageHandler<String> {
             final File vhdlOutputDir = new File(workspaceDir, "src-gen");
             vhdlCompilerArgs.add("-o");
             vhdlCompilerArgs.add(vhdlOutputDir.getAbsolutePath());
-            for (final FileInfo fileInfo : repo.getFiles()) {
-                vhdlCompilerArgs.add(new File(workspaceDir, fileInfo.record.relPath).getAbsolutePath());
-            }
             try {
+                // The inputs that are synchronized lazily are fetched
+                // concurrently, before the synthesis stages start
+                final File boardFile;
+                try (Execution.Scope scope = Execution.openScope()) {
+                    final List<Future<File>> inputs = Lists.newArrayList();
+                    for (final String relPath : files.getPaths()) {
+                        inputs.add(scope.fork(() -> wh.ensureLocal(relPath)));
+                    }
+                    final Future<File> board = scope.fork(() -> wh.ensureLocal(settings.board));
+                    scope.join();
+                    for (final Future<File> input : inputs) {
+                        vhdlCompilerArgs.add(input.get().getAbsolutePath());
+                    }
+                    boardFile = board.get();
+                }
                 final File synDir = new File(workspaceDir, SRC_GEN_SYNTHESIS);
                 if (!synDir.exists()) {
                     if (!synDir.mkdirs()) {
                         throw new IllegalArgumentException("Failed to create directory:" + synDir);
                     }
                 }
-                final File boardFile = new File(workspaceDir, settings.board);
                 final ObjectReader reader = JSONHelper.getReader(BoardSpecSettings.class);
                 final BoardSpecSettings board = reader.readValue(boardFile);
                 final CommandLine cli = new SynthesisOutputProvider().getUsage().parse(vhdlCompilerArgs.toArray(new String[vhdlCompilerArgs.size()]));
-                SynthesisOutputProvider.runSynthesis(cli, settings, board, board.fpga.vendor.toLowerCase(), vhdlOutputDir, synDir, this);
+                vendor = board.fpga.vendor.toLowerCase();
+                SynthesisOutputProvider.runSynthesis(cli, settings, board, vendor, vhdlOutputDir, synDir, this);
             } catch (final Throwable e) {
                 e.printStackTrace();
                 try {
@@ -156,6 +182,9 @@ public class SynthesisInvoker implements MessageHandler<String> {
 
         @Override
         public void reportProgress(ProgressType type, Double progress, String message) throws IOException {
+            if (type == ProgressType.done) {
+                completed = true;
+            }
             sendMessage(type, progress, message);
         }
 
@@ -163,6 +192,35 @@ public class SynthesisInvoker implements MessageHandler<String> {
         public void reportResult(CompileInfo compileInfo) throws IOException {
             final ObjectWriter writer = JSONHelper.getWriter();
             connectionHelper.postMessage(Message.COMP_SYNTHESIS, "CompileInfo[]", writer.writeValueAsString(new CompileInfo[] { compileInfo }));
+            // Only runs that produced a bitstream are compared and become the
+            // baseline, the metrics of a failed run are usually incomplete
+            if (completed && (metrics != null)) {
+                checkRegressions(metrics);
+            }
+        }
+
+        @Override
+        public void reportMetrics(CompileInfo info, SynthesisMetrics metrics) throws IOException {
+            this.metrics = metrics;
+            connectionHelper.postMessage(Message.SYNTHESIS_PROGRESS, METRICS_TYPE, metrics);
+        }
+
+        private void checkRegressions(SynthesisMetrics current) throws IOException {
+            final QoRHistory history = QoRHistory.of(new File(workspaceDir, SRC_GEN_SYNTHESIS));
+            final long key = QoRHistory.key(settingsFile, settings.board, vendor);
+            final QoRHistory.Record baseline = history.baseline(key, QoRHistory.DEFAULT_WINDOW);
+            history.append(key, System.currentTimeMillis(), current);
+            if (baseline == null) {
+                return;
+            }
+            final List<String> regressions = QoRHistory.findRegressions(baseline.metrics, current, QoRHistory.DEFAULT_THRESHOLD);
+            if (!regressions.isEmpty()) {
+                final StringBuilder sb = new StringBuilder("Quality of results regressed compared to the median of the runs since " + new Date(baseline.timestamp) + ":");
+                for (final String regression : regressions) {
+                    sb.append('\n').append(regression);
+                }
+                sendMessage(ProgressType.output, null, sb.toString());
+            }
         }
 
     }
@@ -200,6 +258,43 @@ public class SynthesisInvoker implements MessageHandler<String> {
          * @throws IOException
          */
         void reportResult(CompileInfo compileInfo) throws IOException;
+
+        /**
+         * Called when the metrics of a synthesis have been extracted from the reports of the vendor tool
+         *
+         * @param info
+         *            the info about the synthesis
+         * @param metrics
+         *            the extracted metrics
+         * @throws IOException
+         */
+        default void reportMetrics(CompileInfo info, SynthesisMetrics metrics) throws IOException {
+        }
+
+        /**
+         * Called when a stage of the synthesis, usually an external process, starts
+         *
+         * @param stage
+         *            a human readable short description of what is done in this stage
+         * @param startProgress
+         *            the progress at the start of this stage (0..1)
+         * @param endProgress
+         *            the progress once this stage is done (0..1)
+         * @throws IOException
+         */
+        default void stageStarted(String stage, double startProgress, double endProgress) throws IOException {
+        }
+
+        /**
+         * Called when a stage that was started with {@link #stageStarted(String, double, double)} is done
+         *
+         * @param stage
+         *            the stage that is done
+         * @param success
+         *            <code>true</code> when the stage completed normally
+         */
+        default void stageFinished(String stage, boolean success) {
+        }
     }
 
     /**
@@ -226,29 +321,39 @@ public class SynthesisInvoker implements MessageHandler<String> {
      */
     public static Process runProcess(final File workingDir, final ProcessBuilder processBuilder, int timeOutMinutes, String stage, final double progress, final double incProgress,
             final IProgressReporter reporter) throws IOException, InterruptedException {
+        return runProcess(workingDir, processBuilder, timeOutMinutes, stage, progress, incProgress, reporter, null);
+    }
+
+    /**
+     * Same as {@link #runProcess(File, ProcessBuilder, int, String, double, double, IProgressReporter)}, but additionally feeds every output
+     * line into the given parser while the process is running
+     *
+     * @param parser
+     *            the parser that inspects the output, or <code>null</code>
+     */
+    public static Process runProcess(final File workingDir, final ProcessBuilder processBuilder, int timeOutMinutes, String stage, final double progress, final double incProgress,
+            final IProgressReporter reporter, final ReportParser parser) throws IOException, InterruptedException {
         processBuilder.redirectErrorStream(true);
         processBuilder.directory(workingDir);
         final Process process = processBuilder.start();
         final InputStream is = process.getInputStream();
         final StringBuilder sb = new StringBuilder();
-        new Thread((Runnable) () -> {
-            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
-                String line = null;
-                double progressCounter = progress;
-                final String absolutePath = workingDir.getAbsolutePath();
-                while ((line = reader.readLine()) != null) {
-                    line = line.replace(absolutePath, "");
-                    sb.append(line).append('\n');
-                    if (line.startsWith("#!>")) {
-                        reporter.reportProgress(ProgressType.progress, progressCounter, line.substring(3));
-                        progressCounter += incProgress;
-                    }
-                }
-            } catch (final IOException e) {
+        try (Execution.Scope scope = Execution.openScope()) {
+            final Future<?> outputLogger = scope.fork(() -> {
+                readOutput(workingDir, is, sb, progress, incProgress, reporter, parser);
+                return null;
+            });
+            if (!waitOrTerminate(process, timeOutMinutes)) {
+                reporter.reportProgress(ProgressType.error, null, "Consumed more than " + timeOutMinutes + " minutes for " + stage);
+            }
+            // Make sure that all output has been consumed before the parser or the log is looked at
+            try {
+                outputLogger.get(10, TimeUnit.SECONDS);
+            } catch (final ExecutionException e) {
+                System.out.println("SynthesisInvoker.runProcess() Failed to read the output of " + stage + ": " + e.getCause());
+            } catch (final TimeoutException e) {
+                System.out.println("SynthesisInvoker.runProcess() The output of " + stage + " was not consumed within 10s, the log might be incomplete");
             }
-        }, "OutputLogger").start();
-        if (!waitOrTerminate(process, timeOutMinutes)) {
-            reporter.reportProgress(ProgressType.error, null, "Consumed more than " + timeOutMinutes + " minutes for " + stage);
         }
         if (!sb.toString().trim().isEmpty()) {
             reporter.reportProgress(ProgressType.output, null, sb.toString());
@@ -256,6 +361,26 @@ public class SynthesisInvoker implements MessageHandler<String> {
         return process;
     }
 
+    private static void readOutput(final File workingDir, final InputStream is, final StringBuilder sb, final double progress, final double incProgress,
+            final IProgressReporter reporter, final ReportParser parser) {
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line = null;
+            double progressCounter = progress;
+            final String absolutePath = workingDir.getAbsolutePath();
+            while ((line = reader.readLine()) != null) {
+                line = line.replace(absolutePath, "");
+                sb.append(line).append('\n');
+                if (line.startsWith("#!>")) {
+                    reporter.reportProgress(ProgressType.progress, progressCounter, line.substring(3));
+                    progressCounter += incProgress;
+                } else if (parser != null) {
+                    parser.parseLine(line);
+                }
+            }
+        } catch (final IOException e) {
+        }
+    }
+
     public void sendMessage(ProgressType type, Double progress, String message) throws IOException {
         final ProgressFeedback synProgress = new ProgressFeedback(type, progress, System.currentTimeMillis(), message);
         connectionHelper.postMessage(Message.SYNTHESIS_PROGRESS, "ProgressFeedback", synProgress);
@@ -268,17 +393,82 @@ public class SynthesisInvoker implements MessageHandler<String> {
         reporter.reportProgress(ProgressType.report, null, writer.writeValueAsString(fileRecord));
     }
 
-    public static boolean waitOrTerminate(final Process synProcess, int waitTime) throws InterruptedException {
-        boolean done = false;
-        for (int i = 0; i < (60 * waitTime); i++) {
-            try {
-                synProcess.exitValue();
-                done = true;
-                break;
-            } catch (final Exception e) {
-            }
-            Thread.sleep(1000);
+    /**
+     * Runs a process as a stage of the synthesis. The progress is reported between startProgress and endProgress, based on the duration of
+     * earlier runs when the reporter supports it (see {@link StageProgressReporter}). Lines that start with #!&gt; are reported as progress
+     * messages.
+     *
+     * @param workingDir
+     *            the working directory in which the process will be running
+     * @param processBuilder
+     *            the process to run
+     * @param timeOutMinutes
+     *            the timeout after which the process will be killed
+     * @param stage
+     *            a human readable short description of what is done in this process ('synthesis', 'implementation'...)
+     * @param startProgress
+     *            the progress at the start of this stage
+     * @param endProgress
+     *            the progress once this stage is done
+     * @param reporter
+     *            the reporter to which progress, as well as console output is reported
+     * @param parser
+     *            the parser that inspects the output, or <code>null</code>
+     * @return the process that was either terminated or is terminated
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static Process runStage(final File workingDir, final ProcessBuilder processBuilder, int timeOutMinutes, String stage, double startProgress, double endProgress,
+            final IProgressReporter reporter, final ReportParser parser) throws IOException, InterruptedException {
+        reporter.stageStarted(stage, startProgress, endProgress);
+        boolean success = false;
+        try {
+            final Process process = runProcess(workingDir, processBuilder, timeOutMinutes, stage, startProgress, 0, reporter, parser);
+            success = process.exitValue() == 0;
+            return process;
+        } catch (final IllegalThreadStateException e) {
+            // The process was destroyed after the time out, but has not terminated yet
+            throw new IOException("The stage " + stage + " did not terminate", e);
+        } finally {
+            reporter.stageFinished(stage, success);
         }
+    }
+
+    /**
+     * Attaches the metrics to the compile info by writing them next to the other synthesis results and reporting them as file. The metrics
+     * themselves are passed to {@link IProgressReporter#reportMetrics(CompileInfo, SynthesisMetrics)}
+     *
+     * @param reporter
+     *            the reporter to use
+     * @param info
+     *            the info to which the metrics belong
+     * @param writer
+     *            the writer to use for JSON serialization
+     * @param synDir
+     *            the directory in which the metrics file is written
+     * @param topModule
+     *            the name of the top module which is used as name for the metrics file
+     * @param metrics
+     *            the metrics that were extracted from the reports
+     * @throws IOException
+     */
+    public static void reportMetrics(IProgressReporter reporter, final CompileInfo info, final ObjectWriter writer, File synDir, String topModule, SynthesisMetrics metrics)
+            throws IOException {
+        final String metricsRelPath = topModule + ".metrics.json";
+        final File metricsFile = new File(synDir, metricsRelPath);
+        writer.writeValue(metricsFile, metrics);
+        reporter.reportMetrics(info, metrics);
+        reportFile(reporter, info, writer, metricsFile, metricsRelPath);
+    }
+
+    /**
+     * Waits for the process to terminate, the process is destroyed after the
+     * given number of minutes
+     *
+     * @return <code>false</code> if the process had to be destroyed
+     */
+    public static boolean waitOrTerminate(final Process synProcess, int waitTime) throws InterruptedException {
+        final boolean done = synProcess.waitFor(waitTime, TimeUnit.MINUTES);
         if (!done) {
             synProcess.destroy();
         }
@@ -397,6 +587,7 @@ public class SynthesisInvoker implements MessageHandler<String> {
     }
 
     private final ConnectionHelper connectionHelper;
+    private final WorkspaceHelper wh;
     private static final Map<String, ISynthesisTool> toolMap = Maps.newLinkedHashMap();
 
     static {
@@ -408,16 +599,17 @@ public class SynthesisInvoker implements MessageHandler<String> {
         }
     }
 
-    public SynthesisInvoker(ConnectionHelper ch) {
+    public SynthesisInvoker(ConnectionHelper ch, WorkspaceHelper wh) {
         this.connectionHelper = ch;
+        this.wh = wh;
     }
 
     @Override
     public void handle(Message<String> msg, IWorkspaceListener listener, File workspaceDir, String workspaceID, RepoInfo info) throws Exception {
         final String path = WorkspaceHelper.getContent(msg, String.class);
         final ObjectReader reader = JSONHelper.getReader(SynthesisSettings.class);
-        final SynthesisSettings contents = reader.readValue(new File(workspaceDir, path));
-        executor.execute(new SynJob(contents, path, workspaceDir, workspaceID, info));
+        final SynthesisSettings contents = reader.readValue(wh.ensureLocal(path));
+        executor.execute(new SynJob(contents, path, workspaceDir, workspaceID, wh.getModel().snapshot()));
     }
 
     /**
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Quality of result numbers that were extracted from the reports of a vendor tool. Values that could not be found in any report remain
+ * <code>null</code>.
+ */
+public class SynthesisMetrics {
+    /**
+     * The maximum frequency in MHz as estimated by the timing analysis
+     */
+    @JsonProperty
+    public Double fmaxMHz;
+    /**
+     * The worst slack of all constrained paths in ns. Negative values indicate a failed constraint
+     */
+    @JsonProperty
+    public Double worstSlackNs;
+    @JsonProperty
+    public Integer luts;
+    @JsonProperty
+    public Integer flipFlops;
+    @JsonProperty
+    public Integer brams;
+    @JsonProperty
+    public Integer ios;
+    @JsonProperty
+    public int warnings;
+    @JsonProperty
+    public int errors;
+
+    /**
+     * Takes all values that are set in other. Warnings and errors are added up as they come from different reports.
+     *
+     * @param other
+     *            the metrics of a later stage
+     */
+    public void merge(SynthesisMetrics other) {
+        if (other.fmaxMHz != null) {
+            fmaxMHz = other.fmaxMHz;
+        }
+        if (other.worstSlackNs != null) {
+            worstSlackNs = other.worstSlackNs;
+        }
+        if (other.luts != null) {
+            luts = other.luts;
+        }
+        if (other.flipFlops != null) {
+            flipFlops = other.flipFlops;
+        }
+        if (other.brams != null) {
+            brams = other.brams;
+        }
+        if (other.ios != null) {
+            ios = other.ios;
+        }
+        warnings += other.warnings;
+        errors += other.errors;
+    }
+
+    @Override
+    public String toString() {
+        return "SynthesisMetrics [fmaxMHz=" + fmaxMHz + ", worstSlackNs=" + worstSlackNs + ", luts=" + luts + ", flipFlops=" + flipFlops + ", brams=" + brams + ", ios=" + ios
+                + ", warnings=" + warnings + ", errors=" + errors + "]";
+    }
+}
@@ -182,7 +182,10 @@ public class SynthesisOutputProvider implements IOutputProvider, IProgressReport
                 ByteStreams.copy(is, os);
             }
             vhdlFiles.add(0, pshdl_pkg);
-            final CompileInfo compileInfo = tool.runSynthesis(topModule, wrappedModule, vhdlFiles, outputDir, board, settings, reporter, cli);
+            final String timingKey = StageTimingModel.key(topModule, board.boardName, vendor);
+            final StageProgressReporter stageReporter = new StageProgressReporter(reporter, StageTimingModel.of(outputDir), timingKey,
+                    StageProgressReporter.designSize(vhdlFiles));
+            final CompileInfo compileInfo = tool.runSynthesis(topModule, wrappedModule, vhdlFiles, outputDir, board, settings, stageReporter, cli);
             if (compileInfo != null) {
                 reporter.reportResult(compileInfo);
             }
@@ -211,6 +214,11 @@ public class SynthesisOutputProvider implements IOutputProvider, IProgressReport
         return record;
     }
 
+    @Override
+    public void reportMetrics(CompileInfo info, SynthesisMetrics metrics) throws IOException {
+        System.out.println("Metrics: " + JSONHelper.getWriter().writeValueAsString(metrics));
+    }
+
     @Override
     public void reportResult(CompileInfo compileInfo) throws IOException {
 
@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * Admits the transfers to and from the server by priority, so a source edit
+ * does not wait behind the upload of a large log. Waiting transfers start in
+ * the order of their {@link Priority} and then of their arrival, and one slot
+ * is always kept free of derived transfers.
+ * <p>
+ * The number of concurrent transfers adapts to the connection. It grows
+ * additively with every successful transfer that made use of the current
+ * limit, and is halved when a transfer fails, the server signals overload
+ * or the latency of small transfers rises well above the lowest one seen.
+ * <p>
+ * An optional bandwidth cap limits the average rate. Uploads are accounted
+ * before they start, downloads while they are read. Source transfers are
+ * accounted but never held back by the cap.
+ */
+public class TransferScheduler {
+
+    public static enum Priority {
+        /**
+         * Files edited by the user, where someone may be waiting
+         */
+        SOURCE,
+        /**
+         * Messages to other clients, like progress reports
+         */
+        MESSAGE,
+        /**
+         * Generated outputs and logs
+         */
+        DERIVED
+    }
+
+    public static interface Transfer<T> {
+        public T run() throws IOException;
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+        private final Priority priority;
+        private final long sequence;
+        private final long size;
+        private boolean granted;
+
+        private Waiter(Priority priority, long sequence, long size) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.size = size;
+        }
+
+        @Override
+        public int compareTo(Waiter o) {
+            final int res = priority.compareTo(o.priority);
+            if (res != 0) {
+                return res;
+            }
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+
+    /**
+     * Transfers up to this size are dominated by latency and used to detect
+     * congestion
+     */
+    private static final long SMALL_TRANSFER = 64 * 1024;
+    /**
+     * The size of a transfer whose size is not known up front, like a
+     * download. It is not accounted before it starts and its latency is not
+     * used to detect congestion.
+     */
+    public static final long UNKNOWN_SIZE = -1;
+    private static final long MIN_LATENCY_INCREASE = 50;
+    private static final long DECREASE_INTERVAL = 1000;
+
+    private final int maxConcurrency;
+    private final long bytesPerSecond;
+    private final PriorityQueue<Waiter> waiting = new PriorityQueue<>();
+    private double limit;
+    private int active;
+    private long sequence;
+    private long baseLatency = Long.MAX_VALUE;
+    private long lastDecrease;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond
+     *            the bandwidth cap, or 0 for none
+     */
+    public TransferScheduler(int initialConcurrency, int maxConcurrency, long bytesPerSecond) {
+        this.limit = initialConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+    }
+
+    public static TransferScheduler fromProperties() {
+        final int initial = Integer.getInteger("PSHDL_TRANSFER_CONCURRENCY", 4);
+        final int max = Integer.getInteger("PSHDL_TRANSFER_MAX_CONCURRENCY", 16);
+        final long kbps = Long.getLong("PSHDL_BANDWIDTH_KBPS", 0);
+        return new TransferScheduler(initial, Math.max(initial, max), kbps * 1024);
+    }
+
+    public <T> T execute(Priority priority, long size, Transfer<T> transfer) throws IOException {
+        return execute(priority, size, transfer, result -> false);
+    }
+
+    /**
+     * Runs the transfer once it is admitted
+     *
+     * @param size
+     *            the number of bytes sent, accounted against the bandwidth
+     *            cap before the transfer starts, or {@link #UNKNOWN_SIZE}
+     * @param overloaded
+     *            tells whether the result indicates an overloaded server
+     */
+    public <T> T execute(Priority priority, long size, Transfer<T> transfer, Predicate<? super T> overloaded) throws IOException {
+        acquire(priority, size);
+        final long start = System.currentTimeMillis();
+        boolean congested = true;
+        try {
+            final T result = transfer.run();
+            congested = overloaded.test(result);
+            return result;
+        } finally {
+            release(size, System.currentTimeMillis() - start, congested);
+        }
+    }
+
+    private synchronized void acquire(Priority priority, long size) throws InterruptedIOException {
+        final Waiter waiter = new Waiter(priority, sequence++, size);
+        waiting.add(waiter);
+        try {
+            while (true) {
+                final long delay = grant();
+                if (waiter.granted) {
+                    return;
+                }
+                wait(delay);
+            }
+        } catch (final InterruptedException e) {
+            if (!waiting.remove(waiter)) {
+                active--;
+                grant();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a transfer slot");
+        }
+    }
+
+    /**
+     * Admits as many waiting transfers as possible
+     *
+     * @return how long to wait until the bandwidth cap admits the next one,
+     *         or 0 if it is not the bandwidth that keeps it waiting
+     */
+    private long grant() {
+        refill();
+        Waiter head;
+        boolean admitted = false;
+        long delay = 0;
+        while ((head = waiting.peek()) != null) {
+            if (active >= slotsFor(head.priority)) {
+                break;
+            }
+            if ((head.priority != Priority.SOURCE) && (tokens < 0)) {
+                delay = Math.max(1, (long) ((-tokens * 1000) / bytesPerSecond));
+                break;
+            }
+            waiting.poll();
+            head.granted = true;
+            active++;
+            if (bytesPerSecond > 0) {
+                tokens -= Math.max(0, head.size);
+            }
+            admitted = true;
+        }
+        if (admitted) {
+            notifyAll();
+        }
+        return delay;
+    }
+
+    private int slotsFor(Priority priority) {
+        final int slots = Math.max(1, (int) limit);
+        if ((priority == Priority.DERIVED) && (slots > 1)) {
+            return slots - 1;
+        }
+        return slots;
+    }
+
+    private void refill() {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (((now - lastRefill) * bytesPerSecond) / 1e9));
+        lastRefill = now;
+    }
+
+    private synchronized void release(long size, long latency, boolean congested) {
+        final boolean saturated = active >= (int) limit;
+        active--;
+        if (!congested && (size != UNKNOWN_SIZE) && (size <= SMALL_TRANSFER)) {
+            baseLatency = Math.min(baseLatency, latency);
+            congested = latency > Math.max(2 * baseLatency, baseLatency + MIN_LATENCY_INCREASE);
+        }
+        final long now = System.currentTimeMillis();
+        if (congested) {
+            if ((now - lastDecrease) > DECREASE_INTERVAL) {
+                lastDecrease = now;
+                limit = Math.max(1, limit / 2);
+                System.out.println("TransferScheduler.release() Congestion, reducing concurrent transfers to " + (int) limit);
+            }
+        } else if (saturated) {
+            limit = Math.min(maxConcurrency, limit + (1 / limit));
+        }
+        grant();
+    }
+
+    /**
+     * Accounts bytes received by a running transfer and waits if the
+     * bandwidth cap is exceeded
+     */
+    public void throttle(Priority priority, int bytes) throws InterruptedIOException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        final long delay;
+        synchronized (this) {
+            refill();
+            tokens -= bytes;
+            if ((priority == Priority.SOURCE) || (tokens >= 0)) {
+                return;
+            }
+            delay = (long) ((-tokens * 1000) / bytesPerSecond);
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttling a transfer");
+        }
+    }
+
+    public synchronized int getConcurrencyLimit() {
+        return (int) limit;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TransferScheduler [limit=" + (int) limit + ", active=" + active + ", waiting=" + waiting.size() + "]";
+    }
+}
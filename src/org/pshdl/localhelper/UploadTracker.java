@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Remembers which version of a file this client uploaded last. It serves as
+ * an optimistic overlay over the known remote state: the file monitor does not
+ * upload a version again while the server did not confirm it yet, and the
+ * confirmation that the server broadcasts back to us can be recognized and
+ * skipped without hashing the local file.
+ */
+public class UploadTracker {
+
+    private static final int RECENT = 4;
+
+    private static final class Upload {
+        public final long lastModified;
+        /**
+         * The hashes of the most recent uploads, newest first. The echo of an
+         * older upload can still arrive after a newer one was started.
+         */
+        public final String[] hashes;
+
+        public Upload(String hash, long lastModified, Upload previous) {
+            this.lastModified = lastModified;
+            final int count = previous == null ? 1 : Math.min(RECENT, previous.hashes.length + 1);
+            this.hashes = new String[count];
+            this.hashes[0] = hash;
+            if (previous != null) {
+                System.arraycopy(previous.hashes, 0, hashes, 1, count - 1);
+            }
+        }
+    }
+
+    private final ConcurrentMap<String, Upload> uploads = Maps.newConcurrentMap();
+
+    /**
+     * Records that the upload of a version started
+     *
+     * @param lastModified
+     *            the local modification time of the version
+     */
+    public void started(String relPath, String hash, long lastModified) {
+        uploads.put(relPath, new Upload(hash, lastModified, uploads.get(relPath)));
+    }
+
+    public void finished(String relPath, boolean success) {
+        if (!success) {
+            // The journal retries it, until then the monitor has to treat the
+            // file as not uploaded
+            uploads.remove(relPath);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the local version with this modification
+     *         time is uploaded or being uploaded
+     */
+    public boolean isUploaded(String relPath, long lastModified) {
+        final Upload upload = uploads.get(relPath);
+        return (upload != null) && (upload.lastModified == lastModified);
+    }
+
+    /**
+     * @return <code>true</code> if a remote record with this hash only
+     *         confirms our own upload
+     */
+    public boolean isEcho(String relPath, String hash) {
+        final Upload upload = uploads.get(relPath);
+        if ((upload == null) || (hash == null)) {
+            return false;
+        }
+        for (final String uploaded : upload.hashes) {
+            if (uploaded.equalsIgnoreCase(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the uploads of the path, this has to happen when a foreign
+     * change was applied, otherwise a later remote change back to content we
+     * uploaded before would be mistaken for an echo
+     */
+    public void forget(String relPath) {
+        uploads.remove(relPath);
+    }
+}
@@ -29,16 +29,16 @@ package org.pshdl.localhelper;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.pshdl.localhelper.ConnectionHelper.Status;
+import org.pshdl.localhelper.OutboundJournal.Outcome;
 import org.pshdl.localhelper.PSSyncCommandLine.Configuration;
+import org.pshdl.localhelper.WorkspaceModel.FileEntry;
 import org.pshdl.localhelper.actel.ActelSynthesis;
-import org.pshdl.model.utils.HDLCore;
 import org.pshdl.rest.models.CompileInfo;
 import org.pshdl.rest.models.FileInfo;
 import org.pshdl.rest.models.FileRecord;
@@ -51,10 +51,9 @@ import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.base.Charsets;
-import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 
 public class WorkspaceHelper {
@@ -114,7 +113,7 @@ public class WorkspaceHelper {
     }
 
     private final class FileMonitor implements Runnable {
-        public boolean stop = false;
+        private volatile boolean stop = false;
         public File rootFolder;
         public URI rootURI;
         public Set<File> monitoredFiles = Sets.newCopyOnWriteArraySet();
@@ -126,12 +125,20 @@ public class WorkspaceHelper {
             this.rootURI = rootFolder.toURI();
         }
 
+        /**
+         * Ends the monitoring within a second, the current scan is finished
+         * first
+         */
+        public void stop() {
+            stop = true;
+        }
+
         @Override
         public void run() {
             try {
                 System.out.println("WorkspaceHelper.FileMonitor.run() Monitoring on folder:" + rootFolder);
                 while (!stop) {
-                    findMonitorFiles(rootFolder);
+                    scan();
                     for (int i = 0; i < 10; i++) {
                         Thread.sleep(1000);
                         if (stop) {
@@ -140,13 +147,34 @@ public class WorkspaceHelper {
                         for (final File f : monitoredFiles) {
                             handleLocalFile(f);
                         }
+                        if (!journal.isEmpty() && ch.isConnected()) {
+                            journal.drain();
+                        }
                     }
                 }
             } catch (final InterruptedException e) {
             }
         }
 
-        private void findMonitorFiles(File file) {
+        /**
+         * Walks the workspace and picks up the ignore files on the way, so
+         * ignored directories are never entered. The rules found are then
+         * used for the inbound sync as well.
+         */
+        private void scan() {
+            final List<IgnoreRules.Rule> collected = Lists.newArrayList(IgnoreRules.defaults().getRules());
+            findMonitorFiles(rootFolder, "", IgnoreRules.of(collected), collected);
+            final IgnoreRules rules = IgnoreRules.of(collected);
+            loop.execute(() -> ignoreRules = rules);
+            for (final File file : monitoredFiles) {
+                if (rules.isExcluded(rootURI.relativize(file.toURI()).toString())) {
+                    // Ignored since, but not deleted
+                    monitoredFiles.remove(file);
+                }
+            }
+        }
+
+        private void findMonitorFiles(File file, String relPath, IgnoreRules rules, List<IgnoreRules.Rule> collected) {
             // System.out.println("WorkspaceHelper.FileMonitor.findMonitorFiles()"
             // + file);
             final String extension = Files.getFileExtension(file.getName());
@@ -154,9 +182,16 @@ public class WorkspaceHelper {
                 if ("src-gen".equals(file.getName())) {
                     return;
                 }
+                final IgnoreRules dirRules = rules.withIgnoreFile(file, relPath, collected);
                 final File[] listFiles = file.listFiles();
+                if (listFiles == null) {
+                    return;
+                }
                 for (final File subFile : listFiles) {
-                    findMonitorFiles(subFile);
+                    final String subPath = IgnoreRules.childPath(relPath, subFile.getName());
+                    if (!dirRules.isIgnored(subPath, subFile.isDirectory())) {
+                        findMonitorFiles(subFile, subPath, dirRules, collected);
+                    }
                 }
             } else if (extensions.contains(extension.toLowerCase())) {
                 if (monitoredFiles.add(file)) {
@@ -168,42 +203,72 @@ public class WorkspaceHelper {
         private void handleLocalFile(File file) {
             final String relPath = rootURI.relativize(file.toURI()).toString();
             if (!file.exists()) {
-                ch.deleteFile(workspaceID, relPath);
+                journal.delete(relPath);
+                uploads.forget(relPath);
                 monitoredFiles.remove(file);
+            } else if (uploads.isUploaded(relPath, file.lastModified())) {
+                // This version is uploaded already, the server just did not
+                // confirm it yet
+                return;
             } else {
-                final FileInfo info = knownFiles.get(relPath);
-                if (info != null) {
-                    final FileRecord record = info.record;
-                    if (getModification(record) < file.lastModified()) {
+                final FileEntry entry = model.get(relPath);
+                if (entry != null) {
+                    if (getModification(entry.lastModified) < file.lastModified()) {
                         System.out.println("WorkspaceHelper.FileMonitor.findMonitorFiles() Uploading outdated file");
                         try {
-                            final String hash = Files.asByteSource(file).hash(Hashing.sha1()).toString();
-                            if (hash.equalsIgnoreCase(record.hash)) {
+                            final String hash = hashIndex.hash(file);
+                            if (entry.hashMatches(hash)) {
                                 System.out.println("WorkspaceHelper.FileMonitor.findMonitorFiles() Hash still fits, resetting modification stamp");
-                                if (!file.setLastModified(getModification(record))) {
+                                if (!hashIndex.setLastModified(file, hash, getModification(entry.lastModified))) {
                                     listener.doLog(Severity.ERROR, "Failed to update time stamp on file:" + file);
                                 }
                             } else {
-                                ch.uploadFile(file, workspaceID, record.relPath);
+                                journal.upload(entry.relPath, false);
                             }
-                            listener.fileOperation(FileOp.UPLOADED, file);
                         } catch (final IOException e) {
                             listener.doLog(e);
                         }
                     }
                 } else {
                     System.out.println("WorkspaceHelper.FileMonitor.findMonitorFiles() Uploading unknown file");
-                    try {
-                        ch.uploadFile(file, workspaceID, relPath);
-                        listener.fileOperation(FileOp.UPLOADED, file);
-                    } catch (final IOException e) {
-                        listener.doLog(e);
-                    }
+                    journal.upload(relPath, true);
                 }
             }
         }
     }
 
+    /**
+     * Executes the operations of the {@link OutboundJournal} against the
+     * server
+     */
+    private final class JournalHandler implements OutboundJournal.IOperationHandler {
+        @Override
+        public Outcome upload(String relPath) throws IOException {
+            final File file = new File(root, relPath);
+            if (!file.exists()) {
+                // The monitor will journal the delete
+                return Outcome.DONE;
+            }
+            final long lastModified = file.lastModified();
+            uploads.started(relPath, hashIndex.hash(file), lastModified);
+            Outcome outcome = Outcome.RETRY;
+            try {
+                outcome = Outcome.of(ch.uploadFile(file, workspaceID, relPath), 201);
+            } finally {
+                uploads.finished(relPath, outcome == Outcome.DONE);
+            }
+            if (outcome == Outcome.DONE) {
+                listener.fileOperation(FileOp.UPLOADED, file);
+            }
+            return outcome;
+        }
+
+        @Override
+        public Outcome delete(String relPath) throws IOException {
+            return Outcome.of(ch.deleteFile(workspaceID, relPath), 200);
+        }
+    }
+
     public static enum FileOp {
         ADDED, UPDATED, REMOVED, UPLOADED;
     }
@@ -226,6 +291,16 @@ public class WorkspaceHelper {
 
     public static interface MessageHandler<T> {
         public void handle(Message<T> msg, IWorkspaceListener listener, File workspaceDir, String workspaceID, RepoInfo info) throws Exception;
+
+        /**
+         * Control messages are handled on their own lane. Handlers that return
+         * <code>false</code> are called on the stream thread and are expected
+         * to dispatch their work by path, either through the
+         * {@link InboundCoalescer} or with {@link WorkspaceHelper#submit}.
+         */
+        public default boolean isControl() {
+            return true;
+        }
     }
 
     public class FileInfoArrayHandler implements MessageHandler<FileInfo[]> {
@@ -234,17 +309,27 @@ public class WorkspaceHelper {
         public void handle(Message<FileInfo[]> msg, IWorkspaceListener listener, File workspaceDir, String workspaceID, RepoInfo info) throws Exception {
             final FileInfo[] readValues = getContent(msg, FileInfo[].class);
             for (final FileInfo fi : readValues) {
-                handleFileInfo(fi);
+                coalescer.add(fi.record.relPath, fi.record.lastModified, () -> handleFileInfo(fi));
             }
         }
 
+        @Override
+        public boolean isControl() {
+            return false;
+        }
+
     }
 
     public class RepoInfoHandler implements MessageHandler<RepoInfo> {
 
         @Override
         public void handle(Message<RepoInfo> msg, IWorkspaceListener listener, File workspaceDir, String workspaceID, RepoInfo info) throws Exception {
-            repo = getContent(msg, RepoInfo.class);
+            handleRepoInfo(getContent(msg, RepoInfo.class));
+        }
+
+        @Override
+        public boolean isControl() {
+            return false;
         }
 
     }
@@ -254,33 +339,45 @@ public class WorkspaceHelper {
         @Override
         public void handle(Message<FileInfo> msg, IWorkspaceListener listener, File workspaceDir, String workspaceID, RepoInfo repo) throws Exception {
             final FileInfo fi = getContent(msg, FileInfo.class);
-            final FileRecord record = fi.record;
-            final String relPath = record.relPath;
-            final File localFile = new File(root, relPath);
-            if (localFile.exists()) {
-                if (localFile.lastModified() > getModification(record)) {
-                    listener.doLog(Severity.WARNING, "A file that existed locally is newer than a remotely deleted file:" + relPath);
-                } else {
-                    if (!localFile.delete()) {
-                        listener.doLog(Severity.ERROR, "Failed to delete file:" + localFile);
-                    }
-                    listener.fileOperation(FileOp.REMOVED, localFile);
-                }
-                final CompileInfo info = fi.info;
-                if (info != null) {
-                    deleteCompileInfoFiles(info);
-                }
+            coalescer.add(fi.record.relPath, fi.record.lastModified, () -> handleFileDelete(fi));
+        }
+
+        @Override
+        public boolean isControl() {
+            return false;
+        }
+
+        private void handleFileDelete(final FileInfo fi) {
+            WorkspaceHelper.this.handleFileDelete(fi.record.relPath, getModification(fi.record), fi.info);
+        }
+
+    }
+
+    private void handleFileDelete(final String relPath, final long remoteLastModified, final CompileInfo info) {
+        uploads.forget(relPath);
+        deferred.remove(relPath);
+        if (ignoreRules.isExcluded(relPath)) {
+            // The local file is not synchronized, so it is not ours to delete
+            model.remove(relPath);
+            return;
+        }
+        final File localFile = new File(root, relPath);
+        if (localFile.exists()) {
+            if (localFile.lastModified() > remoteLastModified) {
+                listener.doLog(Severity.WARNING, "A file that existed locally is newer than a remotely deleted file:" + relPath);
             } else {
-                listener.doLog(Severity.WARNING, "A file that existed remotely but not locally has been deleted:" + relPath);
-            }
-            for (final Iterator<FileInfo> iterator = repo.getFiles().iterator(); iterator.hasNext();) {
-                final FileInfo repoFI = iterator.next();
-                if (repoFI.record.relPath.equals(relPath)) {
-                    iterator.remove();
+                if (!localFile.delete()) {
+                    listener.doLog(Severity.ERROR, "Failed to delete file:" + localFile);
                 }
+                listener.fileOperation(FileOp.REMOVED, localFile);
+            }
+            if (info != null) {
+                deleteCompileInfoFiles(info);
             }
+        } else {
+            listener.doLog(Severity.WARNING, "A file that existed remotely but not locally has been deleted:" + relPath);
         }
-
+        model.remove(relPath);
     }
 
     public class CompileContainerHandler implements MessageHandler<CompileInfo[]> {
@@ -289,73 +386,188 @@ public class WorkspaceHelper {
         public void handle(Message<CompileInfo[]> msg, IWorkspaceListener listener, File workspaceDir, String workspaceID, RepoInfo repo) throws Exception {
             final CompileInfo[] cc = getContent(msg, CompileInfo[].class);
             for (final CompileInfo ci : cc) {
-                handleCompileInfo(ci);
+                for (final FileRecord output : ci.getFiles()) {
+                    coalescer.add(output.relPath, output.lastModified, () -> handleFileUpdate(output));
+                }
             }
         }
 
+        @Override
+        public boolean isControl() {
+            return false;
+        }
+
     }
 
     private static final String WID_FILE = ".wid";
-    private File root;
-    private String workspaceID;
+    /**
+     * The directory in the workspace where the helper keeps its state. It is
+     * never monitored or synchronized.
+     */
+    public static final String HELPER_DIR = ".pshdl";
+    private static final String JOURNAL_FILE = HELPER_DIR + File.separator + "journal";
+    /**
+     * Where the journal was kept before, it is moved on start
+     */
+    private static final String OLD_JOURNAL_FILE = ".journal";
+    private volatile File root;
+    private volatile String workspaceID;
     private static final ObjectWriter writer = JSONHelper.getWriter();
     private final IWorkspaceListener listener;
     private final ConnectionHelper ch;
-    private final Map<String, MessageHandler<?>> handlerMap = Maps.newLinkedHashMap();
+    private final SharedResources resources;
+    private final HashIndex hashIndex;
+    private final UploadTracker uploads = new UploadTracker();
+    /**
+     * The only writer of the state below that is changed while connected.
+     * Handlers of the inbound executor and the file monitor post their
+     * changes to it instead of writing the fields themselves.
+     */
+    private final EventLoop loop = new EventLoop("Workspace");
+    private final SubjectDispatcher<MessageHandler<?>> dispatcher = new SubjectDispatcher<>();
 
     private static final ObjectMapper mapper = JSONHelper.getMapper();
+    /**
+     * Only accessed on the loop
+     */
     private FileMonitor fileMonitor;
-    protected Map<String, FileInfo> knownFiles = Maps.newLinkedHashMap();
+    private volatile OutboundJournal journal;
+    protected final WorkspaceModel model = new WorkspaceModel(loop);
+    private final KeyedExecutor inbound;
+    private static final int INBOUND_CAPACITY = Integer.getInteger("PSHDL_INBOUND_CAPACITY", 1024);
+    private final InboundCoalescer coalescer = new InboundCoalescer(Long.getLong("PSHDL_COALESCE_MS", 250), INBOUND_CAPACITY, new InboundCoalescer.IChangeSink() {
+        @Override
+        public void apply(String relPath, FileTask task) {
+            submit(relPath, task);
+        }
+
+        @Override
+        public boolean tryApply(String relPath, FileTask task) {
+            return trySubmit(relPath, task);
+        }
+
+        @Override
+        public void applyMarker(Runnable marker) {
+            inbound.executeControl(marker);
+        }
+    });
     private final Configuration config;
-    private ServiceAdvertiser psa;
-    private RepoInfo repo;
+    private volatile ServiceAdvertiser psa;
+    private volatile RepoInfo repo;
+    private volatile SyncRules syncRules;
+    private volatile IgnoreRules ignoreRules = IgnoreRules.defaults();
+    /**
+     * The latest records of files that are synchronized lazily and have not
+     * been fetched since
+     */
+    private final Map<String, FileRecord> deferred = Maps.newConcurrentMap();
 
     public WorkspaceHelper(IWorkspaceListener listener, String workspaceID, String folder, Configuration config) {
+        this(listener, workspaceID, folder, config, new SharedResources(false));
+    }
+
+    /**
+     * @param resources
+     *            the resources shared with the other workspaces of the process
+     */
+    public WorkspaceHelper(IWorkspaceListener listener, String workspaceID, String folder, Configuration config, SharedResources resources) {
         ActelSynthesis.ACTEL_TCLSH = config.acttclsh;
         ActelSynthesis.SYNPLIFY = config.synplify;
         this.config = config;
+        this.resources = resources;
+        this.hashIndex = resources.getHashIndex();
         if (listener != null) {
             this.listener = listener;
         } else {
             this.listener = new ConsoleListener();
         }
+        this.inbound = resources.createInboundExecutor(INBOUND_CAPACITY, this.listener);
         if (workspaceID != null) {
             setWorkspaceID(workspaceID);
         }
         if (folder != null) {
             setWorkspace(folder);
         }
-        this.ch = new ConnectionHelper(listener, this, config.secure);
+        this.ch = new ConnectionHelper(listener, this, config.secure, resources);
         registerFileSyncHandlers();
     }
 
     public void registerFileSyncHandlers() {
-        handlerMap.put(Message.WORK_ADDED, new FileInfoArrayHandler());
-        handlerMap.put(Message.WORK_UPDATED, new FileInfoArrayHandler());
-        handlerMap.put(Message.WORK_DELETED, new FileInfoDeleteHandler());
-        handlerMap.put(Message.COMPILER, new CompileContainerHandler());
-        handlerMap.put(Message.WORK_CREATED_WORKSPACE, new RepoInfoHandler());
-        updateServices();
+        final Map<String, MessageHandler<?>> handlers = Maps.newLinkedHashMap();
+        handlers.put(Message.WORK_ADDED, new FileInfoArrayHandler());
+        handlers.put(Message.WORK_UPDATED, new FileInfoArrayHandler());
+        handlers.put(Message.WORK_DELETED, new FileInfoDeleteHandler());
+        handlers.put(Message.COMPILER, new CompileContainerHandler());
+        handlers.put(Message.WORK_CREATED_WORKSPACE, new RepoInfoHandler());
+        registerHandlers(handlers, Collections.<String> emptyList(), null);
+        probeServices();
+    }
+
+    /**
+     * Looks for the synthesis tools in the background, as probing the vendor
+     * tools can take a while. Until then only the board is advertised, a
+     * synthesis found after the connection was established is announced
+     * right away.
+     */
+    public void probeServices() {
+        if (psa == null) {
+            updateServices(false);
+        }
+        Execution.start("ToolProbe", () -> {
+            updateServices();
+            final ServiceAdvertiser advertiser = psa;
+            if (advertiser.synthesisAvailable && ch.isConnected()) {
+                try {
+                    postMessage(Message.SYNTHESIS_AVAILABLE, null, null);
+                } catch (final IOException e) {
+                    listener.doLog(e);
+                }
+            }
+        });
     }
 
     public void updateServices() {
-        boolean synthesisAvailable = false;
-        final Collection<ISynthesisTool> tools = HDLCore.getAllImplementations(ISynthesisTool.class);
-        for (final ISynthesisTool synthesisTool : tools) {
-            if (synthesisTool.isSynthesisAvailable()) {
-                synthesisAvailable = true;
-            }
-        }
+        // Probing the tools may take a while, it is done before entering the
+        // loop
+        updateServices(resources.isSynthesisAvailable());
+    }
+
+    private void updateServices(final boolean synthesisAvailable) {
         final boolean hasBoard = config.comPort != null;
-        psa = new ServiceAdvertiser(synthesisAvailable, hasBoard);
-        handlerMap.put(Message.CLIENT_CONNECTED, psa);
-        handlerMap.put(Message.SERVICE_DISCOVER, psa);
+        final ServiceAdvertiser advertiser = new ServiceAdvertiser(synthesisAvailable, hasBoard);
+        final Map<String, MessageHandler<?>> handlers = Maps.newLinkedHashMap();
+        final List<String> removed = Lists.newArrayList();
+        handlers.put(Message.CLIENT_CONNECTED, advertiser);
+        handlers.put(Message.SERVICE_DISCOVER, advertiser);
         if (synthesisAvailable) {
-            handlerMap.put(Message.SYNTHESIS_RUN, new SynthesisInvoker(ch));
+            handlers.put(Message.SYNTHESIS_RUN, new SynthesisInvoker(ch, this));
+        } else {
+            removed.add(Message.SYNTHESIS_RUN);
         }
         if (hasBoard) {
-            handlerMap.put(Message.BOARD_CONFIGURE, new ConfigureInvoker(ch, config));
+            handlers.put(Message.BOARD_CONFIGURE, new ConfigureInvoker(ch, this, config));
+        } else {
+            removed.add(Message.BOARD_CONFIGURE);
         }
+        registerHandlers(handlers, removed, advertiser);
+    }
+
+    /**
+     * Registers the handlers and removes those of services that are no longer
+     * offered. Waits for the loop, so that the handlers are in place for the
+     * next message.
+     */
+    private void registerHandlers(final Map<String, MessageHandler<?>> handlers, final List<String> removed, final ServiceAdvertiser advertiser) {
+        loop.get(() -> {
+            for (final String subject : removed) {
+                dispatcher.unregister(subject);
+            }
+            dispatcher.registerAll(handlers);
+            if (advertiser != null) {
+                psa = advertiser;
+            }
+            return null;
+        });
     }
 
     public void readWorkspaceID() {
@@ -371,15 +583,34 @@ public class WorkspaceHelper {
 
     public void setWorkspace(String folder) {
         this.root = new File(folder);
+        final File journalFile = new File(root, JOURNAL_FILE);
+        final File oldJournalFile = new File(root, OLD_JOURNAL_FILE);
+        if (oldJournalFile.exists() && !journalFile.exists()) {
+            final File dir = journalFile.getParentFile();
+            if ((!dir.exists() && !dir.mkdirs()) || !oldJournalFile.renameTo(journalFile)) {
+                listener.doLog(Severity.WARNING, "Failed to move the outbound journal to:" + journalFile);
+            }
+        }
+        this.journal = new OutboundJournal(journalFile, new JournalHandler(), listener);
+        try {
+            this.syncRules = SyncRules.read(root);
+        } catch (final Exception e) {
+            listener.doLog(Severity.ERROR, "Failed to read the sync rules, synchronizing everything eagerly:" + e.getMessage());
+            this.syncRules = new SyncRules(Collections.<String> emptyList());
+        }
+        this.ignoreRules = IgnoreRules.load(root);
         readWorkspaceID();
     }
 
     public void startFileMonitor() {
-        if (fileMonitor != null) {
-            fileMonitor.stop = true;
-        }
-        fileMonitor = new FileMonitor(root);
-        new Thread(fileMonitor, "FileMonitor").start();
+        final FileMonitor monitor = new FileMonitor(root);
+        loop.execute(() -> {
+            if (fileMonitor != null) {
+                fileMonitor.stop();
+            }
+            fileMonitor = monitor;
+            Execution.start("FileMonitor", monitor);
+        });
     }
 
     public String validateWorkspaceID(String wid) {
@@ -402,30 +633,88 @@ public class WorkspaceHelper {
     }
 
     protected <T> void handleMessage(Message<T> message) {
-        final String subject = message.subject;
-        final Iterable<String> split = Splitter.on(':').split(subject);
-        final StringBuilder sb = new StringBuilder();
-        for (final String string : split) {
-            sb.append(string);
-            final String newSubject = sb.toString();
+        final List<MessageHandler<?>> handlers = dispatcher.resolve(message.subject);
+        for (int i = 0; i < handlers.size(); i++) {
             @SuppressWarnings("unchecked")
-            final MessageHandler<T> handler = (MessageHandler<T>) handlerMap.get(newSubject);
-            try {
-                if (handler != null) {
+            final MessageHandler<T> handler = (MessageHandler<T>) handlers.get(i);
+            if (handler.isControl()) {
+                // Changes that arrived before the control message are
+                // queued on their lanes, the control task only starts once
+                // they completed
+                coalescer.flush();
+                final RepoInfo currentRepo = repo;
+                inbound.executeControl(() -> {
+                    try {
+                        handler.handle(message, listener, root, workspaceID, currentRepo);
+                    } catch (final Exception e) {
+                        listener.doLog(e);
+                    }
+                });
+            } else {
+                try {
                     handler.handle(message, listener, root, workspaceID, repo);
+                } catch (final Exception e) {
+                    listener.doLog(e);
                 }
+            }
+        }
+    }
+
+    public static interface FileTask {
+        public void run() throws Exception;
+    }
+
+    /**
+     * Executes the task after all previously submitted tasks for the same
+     * path. Tasks for different paths run in parallel.
+     */
+    public void submit(String relPath, FileTask task) {
+        inbound.execute(relPath, wrap(task));
+    }
+
+    /**
+     * Like {@link #submit(String, FileTask)}, but does not block
+     *
+     * @return <code>false</code> if the inbound queue is full
+     */
+    public boolean trySubmit(String relPath, FileTask task) {
+        return inbound.tryExecute(relPath, wrap(task));
+    }
+
+    /**
+     * Executes the task on the control lane, once the inbound tasks that
+     * were submitted before it completed
+     */
+    public void submitControl(FileTask task) {
+        inbound.executeControl(wrap(task));
+    }
+
+    /**
+     * Runs the task once all inbound changes that were dispatched so far
+     * were processed. Only the latest task that is still waiting is run.
+     */
+    public void afterInbound(Runnable task) {
+        coalescer.mark(task);
+    }
+
+    private Runnable wrap(FileTask task) {
+        return () -> {
+            try {
+                task.run();
             } catch (final Exception e) {
                 listener.doLog(e);
             }
-            sb.append(':');
-        }
+        };
     }
 
     private void deleteCompileInfoFiles(final CompileInfo info) {
         final List<FileRecord> outputs = info.getFiles();
         for (final FileRecord oi : outputs) {
+            deferred.remove(oi.relPath);
             final File oF = new File(root, oi.relPath);
-            deleteFileAndDir(root, oF);
+            if (oF.exists()) {
+                deleteFileAndDir(root, oF);
+            }
         }
     }
 
@@ -442,9 +731,17 @@ public class WorkspaceHelper {
     }
 
     public void handleFileInfo(final FileInfo fi) throws IOException {
-        handleFileUpdate(fi.record);
+        final String relPath = fi.record.relPath;
+        // The model has to know the incoming version before the file is
+        // written, otherwise the monitor sees a file that is newer than its
+        // entry and uploads the remote change back
         updateRepoInfo(fi);
-        knownFiles.put(fi.record.relPath, fi);
+        if (uploads.isEcho(relPath, fi.record.hash)) {
+            System.out.println("WorkspaceHelper.handleFileInfo() Confirmation of our own upload of " + relPath);
+        } else {
+            uploads.forget(relPath);
+            handleFileUpdate(fi.record);
+        }
         final CompileInfo compileInfo = fi.info;
         if (compileInfo != null) {
             handleCompileInfo(compileInfo);
@@ -452,23 +749,7 @@ public class WorkspaceHelper {
     }
 
     public void updateRepoInfo(final FileInfo remoteFileInfo) {
-        if (repo == null) {
-            return;
-        }
-        final Set<FileInfo> repoFiles = repo.getFiles();
-        boolean found = false;
-        for (final Iterator<FileInfo> iterator = repoFiles.iterator(); iterator.hasNext();) {
-            final FileInfo localFileInfo = iterator.next();
-            if (localFileInfo.record.relPath.equals(remoteFileInfo.record.relPath)) {
-                found = true;
-                if (remoteFileInfo != localFileInfo) {
-                    iterator.remove();
-                }
-            }
-        }
-        if (!found) {
-            repoFiles.add(remoteFileInfo);
-        }
+        model.putAndWait(remoteFileInfo.record);
     }
 
     public void handleCompileInfo(final CompileInfo compileInfo) throws IOException {
@@ -478,40 +759,71 @@ public class WorkspaceHelper {
         }
     }
 
+    /**
+     * Mirrors the remote file if it is synchronized eagerly, otherwise only
+     * its record is kept until {@link #ensureLocal(String)} is called for it.
+     * Files excluded by the ignore rules are not touched.
+     */
     public void handleFileUpdate(FileRecord fr) throws IOException {
+        if (ignoreRules.isExcluded(fr.relPath)) {
+            return;
+        }
+        if (!syncRules.isEager(fr.relPath)) {
+            deferred.put(fr.relPath, fr);
+            return;
+        }
+        deferred.remove(fr.relPath);
+        updateLocalFile(fr);
+    }
+
+    /**
+     * Fetches the file if it is synchronized lazily and the local copy is
+     * missing or outdated. Consumers of workspace files have to call this
+     * before reading them.
+     *
+     * @return the local file
+     */
+    public File ensureLocal(String relPath) throws IOException {
+        final FileRecord fr = deferred.remove(relPath);
+        if (fr != null) {
+            System.out.println("WorkspaceHelper.ensureLocal() Fetching on demand:" + relPath);
+            updateLocalFile(fr);
+        }
+        return new File(root, relPath);
+    }
+
+    private void updateLocalFile(FileRecord fr) throws IOException {
         final File localFile = new File(root, fr.relPath);
         final long remoteLastModified = getModification(fr);
         final String uri = fr.fileURI;
         if (localFile.exists()) {
             final long localLastModified = localFile.lastModified();
-            final String localHash = Files.asByteSource(localFile).hash(Hashing.sha1()).toString();
+            final String localHash = hashIndex.hash(localFile);
             if (fr.hash.equalsIgnoreCase(localHash)) {
-                if (!localFile.setLastModified(remoteLastModified)) {
+                if (!hashIndex.setLastModified(localFile, localHash, remoteLastModified)) {
                     listener.doLog(Severity.ERROR, "Failed to updated modification timestamp on:" + localFile);
                 }
             } else {
                 if ((localLastModified < remoteLastModified) || (remoteLastModified == 0)) {
-                    ch.downloadFile(localFile, FileOp.UPDATED, remoteLastModified, uri);
+                    ch.downloadFile(localFile, FileOp.UPDATED, remoteLastModified, uri, fr.hash);
                 } else {
                     final String newFileName = localFile.getName() + "_conflict" + localLastModified;
                     if (!localFile.renameTo(new File(localFile.getParent(), newFileName))) {
                         listener.doLog(Severity.ERROR, "Failed to rename file:" + localFile + " to " + newFileName);
                     }
                     listener.doLog(Severity.WARNING, "The remote file was older than the local file. Created a backup of local file and used remote file");
-                    ch.downloadFile(localFile, FileOp.UPDATED, remoteLastModified, uri);
-                    final String newlocalHash = Files.asByteSource(localFile).hash(Hashing.sha1()).toString();
-                    System.out.println(newlocalHash);
-                    System.out.println(localHash);
+                    ch.downloadFile(localFile, FileOp.UPDATED, remoteLastModified, uri, fr.hash);
                 }
             }
         } else {
             final File parentFile = localFile.getParentFile();
             if (!parentFile.exists()) {
-                if (!parentFile.mkdirs()) {
+                // Another download may create the same directory concurrently
+                if (!parentFile.mkdirs() && !parentFile.isDirectory()) {
                     listener.doLog(Severity.ERROR, "Failed to create directory:" + parentFile);
                 }
             }
-            ch.downloadFile(localFile, FileOp.ADDED, remoteLastModified, uri);
+            ch.downloadFile(localFile, FileOp.ADDED, remoteLastModified, uri, fr.hash);
         }
     }
 
@@ -527,6 +839,18 @@ public class WorkspaceHelper {
         }
     }
 
+    public boolean isInboundSaturated() {
+        return inbound.isSaturated();
+    }
+
+    public WorkspaceModel getModel() {
+        return model;
+    }
+
+    public HashIndex getHashIndex() {
+        return hashIndex;
+    }
+
     public File getWorkspaceFolder() {
         return root;
     }
@@ -536,17 +860,43 @@ public class WorkspaceHelper {
     }
 
     public void closeConnection() {
-        if (fileMonitor != null) {
-            fileMonitor.stop = true;
-            fileMonitor = null;
-        }
+        loop.execute(() -> {
+            if (fileMonitor != null) {
+                fileMonitor.stop();
+                fileMonitor = null;
+            }
+        });
         ch.closeConnection();
     }
 
+    /**
+     * Closes the connection and releases the resources of the workspace. The
+     * helper can not be used afterwards.
+     */
+    public void dispose() {
+        closeConnection();
+        coalescer.flush();
+        inbound.shutdown();
+        if (!resources.isShared()) {
+            resources.close();
+        }
+    }
+
     public void connectTo(String wid) throws IOException {
         ch.connectTo(wid);
     }
 
+    /**
+     * @see ConnectionHelper#getTimeToFirstSync()
+     */
+    public long getTimeToFirstSync() {
+        return ch.getTimeToFirstSync();
+    }
+
+    private long getModification(long lastModified) {
+        return lastModified + ch.serverDiff;
+    }
+
     private long getModification(FileRecord record) {
         return record.lastModified + ch.serverDiff;
     }
@@ -563,8 +913,27 @@ public class WorkspaceHelper {
         return root.toURI().relativize(localFile.toURI()).toString();
     }
 
+    /**
+     * Applies the result of a reconciliation with the server. Files that were
+     * removed remotely are deleted unless they have been changed locally
+     * since, the changed ones are handled like an update message.
+     */
+    public void handleDifference(MerkleTree.Difference difference) throws IOException {
+        for (final FileEntry entry : difference.removed) {
+            handleFileDelete(entry.relPath, getModification(entry.lastModified), null);
+        }
+        for (final FileInfo fi : difference.changed) {
+            handleFileInfo(fi);
+        }
+    }
+
     public void handleRepoInfo(RepoInfo info) {
-        this.repo = info;
+        loop.execute(() -> repo = info);
+        final List<FileRecord> records = Lists.newArrayListWithCapacity(info.getFiles().size());
+        for (final FileInfo fi : info.getFiles()) {
+            records.add(fi.record);
+        }
+        model.replaceAll(records);
     }
 
 }
@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.pshdl.rest.models.FileRecord;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * The files of the workspace as known to the server, indexed by their path.
+ * Lookups of a single path are O(1) and may be called from any thread. All
+ * changes are applied by the {@link EventLoop} of the workspace, the only
+ * writer, and become visible to lookups once the loop has applied them.
+ * {@link #snapshot()} returns a consistent, immutable view for long running
+ * jobs like the synthesis.
+ */
+public class WorkspaceModel {
+
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    /**
+     * A compact record of a remote file. The hash is kept as bytes instead of
+     * a hex string. The path is interned against the index, as the same paths
+     * are sent over and over again.
+     */
+    public static final class FileEntry {
+        public final String relPath;
+        public final long lastModified;
+        private final byte[] hash;
+
+        public FileEntry(String relPath, long lastModified, String hash) {
+            this.relPath = relPath;
+            this.lastModified = lastModified;
+            this.hash = hash != null ? HEX.decode(hash.toLowerCase()) : null;
+        }
+
+        public String getHash() {
+            return hash != null ? HEX.encode(hash) : null;
+        }
+
+        byte[] getHashBytes() {
+            return hash;
+        }
+
+        public boolean hashMatches(String other) {
+            if ((hash == null) || (other == null) || (other.length() != (hash.length * 2))) {
+                return false;
+            }
+            return Arrays.equals(hash, HEX.decode(other.toLowerCase()));
+        }
+
+        @Override
+        public String toString() {
+            return relPath + "@" + lastModified + " " + getHash();
+        }
+    }
+
+    public static final class Snapshot {
+        private final Map<String, FileEntry> entries;
+        /**
+         * The modification the snapshot was taken at, or -1 if it was taken
+         * in the middle of a batch
+         */
+        private final long modification;
+
+        private Snapshot(Map<String, FileEntry> entries, long modification) {
+            this.entries = entries;
+            this.modification = modification;
+        }
+
+        public Collection<FileEntry> getFiles() {
+            return entries.values();
+        }
+
+        public Set<String> getPaths() {
+            return entries.keySet();
+        }
+
+        public FileEntry get(String relPath) {
+            return entries.get(relPath);
+        }
+    }
+
+    private final EventLoop loop;
+    /**
+     * Only written by the loop, concurrent to allow lookups from other threads
+     */
+    private final ConcurrentMap<String, FileEntry> entries = Maps.newConcurrentMap();
+    /**
+     * Incremented once per batch of changes, to tell whether the cached
+     * snapshot and tree are still up to date. Only written by the loop.
+     */
+    private volatile long modifications;
+    private boolean modified;
+
+    private static final class CachedTree {
+        private final long modification;
+        private final MerkleTree tree;
+
+        private CachedTree(long modification, MerkleTree tree) {
+            this.modification = modification;
+            this.tree = tree;
+        }
+    }
+
+    private volatile CachedTree merkleTree;
+    private volatile Snapshot snapshot;
+
+    public WorkspaceModel() {
+        this(new EventLoop("WorkspaceModel"));
+    }
+
+    public WorkspaceModel(EventLoop loop) {
+        this.loop = loop;
+        loop.addBatchHook(() -> {
+            if (modified) {
+                modified = false;
+                modifications++;
+            }
+        });
+    }
+
+    public FileEntry get(String relPath) {
+        return entries.get(relPath);
+    }
+
+    private FileEntry createEntry(FileRecord record) {
+        final FileEntry old = entries.get(record.relPath);
+        final String relPath = old != null ? old.relPath : record.relPath;
+        return new FileEntry(relPath, record.lastModified, record.hash);
+    }
+
+    /**
+     * @return the entry that will be stored for the record
+     */
+    public FileEntry put(FileRecord record) {
+        final FileEntry entry = createEntry(record);
+        loop.execute(() -> {
+            entries.put(entry.relPath, entry);
+            modified = true;
+        });
+        return entry;
+    }
+
+    /**
+     * Like {@link #put(FileRecord)}, but only returns once the entry is
+     * visible to {@link #get(String)}
+     */
+    public FileEntry putAndWait(FileRecord record) {
+        return loop.get(() -> {
+            final FileEntry entry = createEntry(record);
+            entries.put(entry.relPath, entry);
+            modified = true;
+            return entry;
+        });
+    }
+
+    public void remove(String relPath) {
+        loop.execute(() -> {
+            if (entries.remove(relPath) != null) {
+                modified = true;
+            }
+        });
+    }
+
+    /**
+     * Replaces the content of the model with the given records. As this is a
+     * single change of the loop, no snapshot sees a partial replacement and
+     * entries that are in the model as well as in the records are never
+     * absent in between.
+     */
+    public void replaceAll(Collection<FileRecord> records) {
+        final List<FileRecord> copy = ImmutableList.copyOf(records);
+        loop.execute(() -> {
+            final Set<String> present = Sets.newHashSetWithExpectedSize(copy.size());
+            for (final FileRecord record : copy) {
+                final FileEntry entry = createEntry(record);
+                entries.put(entry.relPath, entry);
+                present.add(entry.relPath);
+            }
+            entries.keySet().retainAll(present);
+            modified = true;
+        });
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return an immutable view that contains all changes posted before. It
+     *         is copied on the loop when first requested after a change.
+     */
+    public Snapshot snapshot() {
+        return loop.get(() -> {
+            final Snapshot cached = snapshot;
+            // Changes of the running batch are not counted yet
+            if (modified) {
+                return new Snapshot(ImmutableMap.copyOf(entries), -1);
+            }
+            if ((cached == null) || (cached.modification != modifications)) {
+                snapshot = new Snapshot(ImmutableMap.copyOf(entries), modifications);
+            }
+            return snapshot;
+        });
+    }
+
+    /**
+     * @return the hash tree of the current content. It is built from a
+     *         snapshot when first requested after a modification, which
+     *         usually happens only when reconnecting. The tree is built
+     *         outside of the loop.
+     */
+    public MerkleTree getMerkleTree() {
+        final CachedTree cached = merkleTree;
+        if ((cached != null) && (cached.modification == modifications)) {
+            return cached.tree;
+        }
+        final Snapshot current = snapshot();
+        final MerkleTree tree = new MerkleTree(current.getFiles());
+        if (current.modification >= 0) {
+            merkleTree = new CachedTree(current.modification, tree);
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper.actel;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.pshdl.localhelper.ReportParser;
+
+/**
+ * Parses Synplify .srr reports as well as the compile and timing output that the Actel designer prints
+ */
+public class ActelReportParser extends ReportParser {
+    // Performance summary: clock, requested frequency, estimated frequency, requested period, estimated period, slack
+    private final Matcher clockSummary = Pattern.compile(
+            "^\\S+\\s+" + DECIMAL + "\\s*MHz\\s+(" + DECIMAL + ")\\s*MHz\\s+" + DECIMAL + "\\s+" + DECIMAL + "\\s+(" + DECIMAL + ")").matcher("");
+    private final Matcher worstSlack = Pattern.compile("Worst slack in design:\\s*(" + DECIMAL + ")").matcher("");
+    private final Matcher maxFrequency = Pattern.compile("Max(?:imum)? [Ff]requency\\s*[:=]?\\s*(" + DECIMAL + ")\\s*MHz").matcher("");
+    private final Matcher coreCells = Pattern.compile("^\\s*Core Cells\\s*:\\s*(\\d+)").matcher("");
+    private final Matcher ioCells = Pattern.compile("^\\s*IO Cells\\s*:\\s*(\\d+)").matcher("");
+    private final Matcher registers = Pattern.compile("^\\s*Register bits not including I/Os:\\s*(\\d+)").matcher("");
+    private final Matcher blockRams = Pattern.compile("^\\s*Block Rams \\(\\w+\\)\\s*:\\s*(\\d+)").matcher("");
+    private final Matcher designerCore = Pattern.compile("^\\s*CORE\\s+Used:\\s*(\\d+)").matcher("");
+    private final Matcher designerIO = Pattern.compile("^\\s*IO \\(W/ clocks\\)\\s+Used:\\s*(\\d+)").matcher("");
+    private final Matcher designerRam = Pattern.compile("^\\s*RAM/FIFO\\s+Used:\\s*(\\d+)").matcher("");
+
+    @Override
+    protected void parseMetrics(CharSequence line) {
+        if (startsWith(line, "@W:")) {
+            metrics.warnings++;
+            return;
+        }
+        if (startsWith(line, "@E:")) {
+            metrics.errors++;
+            return;
+        }
+        if (startsWith(line, "Warning:")) {
+            metrics.warnings++;
+            return;
+        }
+        if (startsWith(line, "Error:")) {
+            metrics.errors++;
+            return;
+        }
+        if (find(worstSlack, line)) {
+            updateWorstSlack(Double.parseDouble(worstSlack.group(1)));
+        } else if (find(clockSummary, line)) {
+            updateFmax(Double.parseDouble(clockSummary.group(1)));
+            updateWorstSlack(Double.parseDouble(clockSummary.group(2)));
+        } else if (find(maxFrequency, line)) {
+            updateFmax(Double.parseDouble(maxFrequency.group(1)));
+        } else if (find(coreCells, line)) {
+            metrics.luts = parseInt(coreCells.group(1));
+        } else if (find(designerCore, line)) {
+            metrics.luts = parseInt(designerCore.group(1));
+        } else if (find(ioCells, line)) {
+            metrics.ios = parseInt(ioCells.group(1));
+        } else if (find(designerIO, line)) {
+            metrics.ios = parseInt(designerIO.group(1));
+        } else if (find(registers, line)) {
+            metrics.flipFlops = parseInt(registers.group(1));
+        } else if (find(blockRams, line)) {
+            metrics.brams = parseInt(blockRams.group(1));
+        } else if (find(designerRam, line)) {
+            metrics.brams = parseInt(designerRam.group(1));
+        }
+    }
+}
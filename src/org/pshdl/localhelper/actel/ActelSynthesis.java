@@ -41,6 +41,7 @@ import org.pshdl.localhelper.ISynthesisTool;
 import org.pshdl.localhelper.JSONHelper;
 import org.pshdl.localhelper.SynthesisInvoker;
 import org.pshdl.localhelper.SynthesisInvoker.IProgressReporter;
+import org.pshdl.localhelper.SynthesisMetrics;
 import org.pshdl.model.utils.internal.Helper;
 import org.pshdl.model.utils.services.IOutputProvider.MultiOption;
 import org.pshdl.rest.models.CompileInfo;
@@ -149,7 +150,8 @@ public class ActelSynthesis implements ISynthesisTool {
                 timeOut = Integer.MAX_VALUE;
             }
         }
-        final Process synProcess = SynthesisInvoker.runProcess(synDir, synProcessBuilder, timeOut, "synthesis", 0.2, 0.15, reporter);
+        final Process synProcess = SynthesisInvoker.runStage(synDir, synProcessBuilder, timeOut, "synthesis", 0.1, 0.3, reporter, null);
+        final SynthesisMetrics metrics = new SynthesisMetrics();
         final CompileInfo info = new CompileInfo();
         info.setCreated(System.currentTimeMillis());
         info.setCreator(SynthesisInvoker.SYNTHESIS_CREATOR);
@@ -161,14 +163,20 @@ public class ActelSynthesis implements ISynthesisTool {
             final File srrLog = new File(synDir, wrappedModule + ".srr");
             final String implRelPath = topModule + ".srr";
             SynthesisInvoker.reportFile(reporter, info, writer, srrLog, implRelPath);
+            parseReport(srrLog, metrics);
+            SynthesisInvoker.reportMetrics(reporter, info, writer, synDir, topModule, metrics);
             reporter.reportProgress(ProgressType.error, null, "Synthesis did not exit normally, exit code was:" + synProcess.exitValue());
         } else {
-            reporter.reportProgress(ProgressType.progress, 0.3, "Starting implementation");
             final ProcessBuilder mapProcessBuilder = new ProcessBuilder(ActelSynthesis.ACTEL_TCLSH.getAbsolutePath(), "ActelSynthScript.tcl");
-            final Process mapProcess = SynthesisInvoker.runProcess(synDir, mapProcessBuilder, 2 * timeOut, "implementation", 0.4, 0.15, reporter);
+            final ActelReportParser designerParser = new ActelReportParser();
+            final Process mapProcess = SynthesisInvoker.runStage(synDir, mapProcessBuilder, 2 * timeOut, "implementation", 0.3, 1.0, reporter, designerParser);
             final File srrLog = new File(synDir, wrappedModule + ".srr");
             final String implRelPath = topModule + ".srr";
             SynthesisInvoker.reportFile(reporter, info, writer, srrLog, implRelPath);
+            parseReport(srrLog, metrics);
+            // The designer reports the placed resources and timing, so they take precedence over the synplify estimates
+            metrics.merge(designerParser.getMetrics());
+            SynthesisInvoker.reportMetrics(reporter, info, writer, synDir, topModule, metrics);
             if (mapProcess.exitValue() != 0) {
                 reporter.reportProgress(ProgressType.error, null, "Implementation did not exit normally, exit code was:" + mapProcess.exitValue());
             } else {
@@ -183,6 +191,12 @@ public class ActelSynthesis implements ISynthesisTool {
         return info;
     }
 
+    private static void parseReport(File srrLog, SynthesisMetrics metrics) throws IOException {
+        final ActelReportParser parser = new ActelReportParser();
+        parser.parseFile(srrLog);
+        metrics.merge(parser.getMetrics());
+    }
+
     @Override
     public String[] getSupportedFPGAVendors() {
         return new String[] { "Actel", "MicroSemi" };
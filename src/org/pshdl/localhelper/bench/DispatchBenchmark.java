@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.pshdl.localhelper.SubjectDispatcher;
+import org.pshdl.rest.models.Message;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Compares the dispatch of message subjects by splitting them and looking up
+ * every prefix in a map, as it was done before, with the
+ * {@link SubjectDispatcher}. Prints the time and the allocated bytes per
+ * message, then dispatches while another thread keeps registering and
+ * removing a handler. Run with the number of messages per round as argument,
+ * the default is 2000000.
+ */
+public class DispatchBenchmark {
+
+    private static final class CountingHandler {
+        private long count;
+
+        private void handle() {
+            count++;
+        }
+    }
+
+    private static final String[] REGISTERED = { Message.WORK_ADDED, Message.WORK_UPDATED, Message.WORK_DELETED, Message.COMPILER, Message.WORK_CREATED_WORKSPACE,
+            Message.CLIENT_CONNECTED, Message.SERVICE_DISCOVER, Message.SYNTHESIS_RUN, Message.BOARD_CONFIGURE };
+
+    public static void main(String[] args) throws Exception {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        final CountingHandler handler = new CountingHandler();
+        final Map<String, CountingHandler> map = Maps.newLinkedHashMap();
+        final SubjectDispatcher<CountingHandler> dispatcher = new SubjectDispatcher<>();
+        for (final String subject : REGISTERED) {
+            map.put(subject, handler);
+            dispatcher.register(subject, handler);
+        }
+        // The mix of subjects seen on a busy workspace, parsed anew from
+        // every message
+        final String[] subjects = new String[1024];
+        for (int i = 0; i < subjects.length; i++) {
+            final String subject;
+            switch (i % 8) {
+            case 0:
+                subject = Message.WORK_ADDED;
+                break;
+            case 1:
+                subject = Message.COMPILER;
+                break;
+            case 2:
+                subject = Message.SYNTHESIS_PROGRESS;
+                break;
+            default:
+                subject = Message.WORK_UPDATED;
+            }
+            subjects[i] = new String(subject.toCharArray());
+        }
+        for (int round = 0; round < 3; round++) {
+            System.out.println("Round " + round + " with " + messages + " messages");
+            measure("split and map", messages, () -> {
+                for (int i = 0; i < messages; i++) {
+                    splitAndMap(map, subjects[i & 1023]);
+                }
+            });
+            measure("trie", messages, () -> {
+                for (int i = 0; i < messages; i++) {
+                    final List<CountingHandler> handlers = dispatcher.resolve(subjects[i & 1023]);
+                    for (int h = 0; h < handlers.size(); h++) {
+                        handlers.get(h).handle();
+                    }
+                }
+            });
+        }
+        churn(dispatcher, subjects, messages);
+        System.out.println("Handled " + handler.count);
+    }
+
+    private static void splitAndMap(Map<String, CountingHandler> map, String subject) {
+        final Iterable<String> split = Splitter.on(':').split(subject);
+        final StringBuilder sb = new StringBuilder();
+        for (final String string : split) {
+            sb.append(string);
+            final CountingHandler handler = map.get(sb.toString());
+            if (handler != null) {
+                handler.handle();
+            }
+            sb.append(':');
+        }
+    }
+
+    /**
+     * Dispatches while the handler for the synthesis is registered and
+     * removed again, as when the tools change. The handlers of the other
+     * subjects must never be missed.
+     */
+    private static void churn(final SubjectDispatcher<CountingHandler> dispatcher, String[] subjects, int messages) throws InterruptedException {
+        final CountingHandler service = new CountingHandler();
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread registrar = new Thread(() -> {
+            long changes = 0;
+            while (!done.get()) {
+                dispatcher.register(Message.SYNTHESIS_PROGRESS, service);
+                dispatcher.unregister(Message.SYNTHESIS_PROGRESS);
+                changes += 2;
+            }
+            System.out.println("  " + changes + " registry changes during dispatch");
+        });
+        registrar.start();
+        long missed = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            final String subject = subjects[i & 1023];
+            final ImmutableList<CountingHandler> handlers = dispatcher.resolve(subject);
+            if (!subject.equals(Message.SYNTHESIS_PROGRESS) && handlers.isEmpty()) {
+                missed++;
+            }
+        }
+        final long time = System.nanoTime() - start;
+        done.set(true);
+        registrar.join();
+        System.out.printf("  trie under churn %8.1fns/msg, %d messages missed a handler%n", (double) time / messages, missed);
+    }
+
+    private static void measure(String name, int messages, Runnable run) {
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        run.run();
+        final long time = System.nanoTime() - start;
+        final long allocated = allocatedBytes() - allocatedBefore;
+        System.out.printf("  %-14s %8.1fns/msg %8.1f bytes/msg%n", name, (double) time / messages, allocated < 0 ? Double.NaN : (double) allocated / messages);
+    }
+
+    /**
+     * @return the bytes allocated by the current thread, or -1 if the JVM
+     *         does not tell
+     */
+    private static long allocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.pshdl.localhelper.PSSyncCommandLine;
+import org.pshdl.localhelper.StartupTraining;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Measures the cold start of the client in fresh JVMs, with and without the
+ * class data sharing archive of the <code>appcds</code> profile. Each
+ * workload is started several times and the time until the process exited
+ * is reported.
+ * <p>
+ * Run with the shaded jar (or any class path), the archive and the number of
+ * runs as arguments, for example
+ * <code>target/localhelper.core-0.2.2.jar target/localhelper.core-0.2.2.jsa 10</code>
+ * . If the archive does not exist it is created with a training run first,
+ * which needs Java 13 or later.
+ */
+public class StartupBenchmark {
+
+    private static final String JAVA = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: StartupBenchmark <jar or class path> <archive> [runs]");
+            return;
+        }
+        final String classPath = args[0];
+        final File archive = new File(args[1]);
+        final int runs = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        if (!archive.exists()) {
+            System.out.println("Creating " + archive + " with a training run");
+            final long start = System.nanoTime();
+            final Process training = start(Lists.newArrayList("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath()), classPath, StartupTraining.class.getName());
+            if (training.waitFor() != 0) {
+                System.out.println("The training run failed with " + training.exitValue());
+                return;
+            }
+            System.out.println("  Training took " + ((System.nanoTime() - start) / 1000000) + "ms");
+            if (!archive.exists()) {
+                System.out.println("The archive was not created, this Java may not support dynamic archives");
+                return;
+            }
+        }
+        // The usage of the command line loads the options and the vendor
+        // tools, the training run connects and loads the synthesis
+        final String[][] workloads = { { PSSyncCommandLine.class.getName(), "-h" }, { StartupTraining.class.getName() } };
+        for (final String[] workload : workloads) {
+            System.out.println(workload[0] + (workload.length > 1 ? " " + workload[1] : ""));
+            final List<String> noArchive = Lists.newArrayList();
+            final List<String> withArchive = Lists.newArrayList("-XX:SharedArchiveFile=" + archive.getAbsolutePath(), "-Xshare:auto");
+            // Once without measuring, to have the files in the page cache
+            run(noArchive, classPath, workload);
+            report("default", measure(noArchive, classPath, workload, runs));
+            report("archive", measure(withArchive, classPath, workload, runs));
+        }
+    }
+
+    private static List<Long> measure(List<String> jvmArgs, String classPath, String[] workload, int runs) throws IOException, InterruptedException {
+        final List<Long> times = Lists.newArrayList();
+        for (int i = 0; i < runs; i++) {
+            times.add(run(jvmArgs, classPath, workload));
+        }
+        Collections.sort(times);
+        return times;
+    }
+
+    /**
+     * @return the milliseconds until the process exited. The exit code is
+     *         not checked, the usage of the command line exits with 1.
+     */
+    private static long run(List<String> jvmArgs, String classPath, String... workload) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        start(jvmArgs, classPath, workload).waitFor();
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static Process start(List<String> jvmArgs, String classPath, String... workload) throws IOException {
+        final List<String> command = Lists.newArrayList(JAVA);
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(classPath);
+        Collections.addAll(command, workload);
+        final ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.to(new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null")));
+        return builder.start();
+    }
+
+    private static void report(String name, List<Long> times) {
+        System.out.printf("  %-8s min %6dms  median %6dms  max %6dms%n", name, times.get(0), times.get(times.size() / 2), times.get(times.size() - 1));
+    }
+}
@@ -0,0 +1,443 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.pshdl.localhelper.transport.Endpoints;
+import org.pshdl.localhelper.transport.ITransport;
+import org.pshdl.localhelper.transport.ITransport.Download;
+import org.pshdl.localhelper.transport.ITransport.IEventHandler;
+import org.pshdl.localhelper.transport.ITransport.IEventStream;
+import org.pshdl.localhelper.transport.MessageChannel;
+import org.pshdl.localhelper.transport.Transports;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Compares the transports on the operations of a sync session: posting
+ * messages, downloading, uploading and deleting files, and receiving events,
+ * the latter two also over the message channel of transports that provide
+ * one. Without arguments a local stand-in server is started. It only speaks
+ * HTTP/1.1, so there the HTTP/2 transport runs over pooled connections. To
+ * measure multiplexing, pass the host:port and a workspace ID of a server that
+ * speaks HTTP/2 and implements the same endpoints.
+ */
+public class TransportBenchmark {
+
+    private static final String WID = "BE4C4BE4C4BE4C4B";
+    private static final int CONCURRENCY = 8;
+    private static final int ROUNDS = 3;
+    private static final int EVENTS = 2000;
+    private static final byte[] SMALL_FILE = new byte[16 * 1024];
+    private static final byte[] LARGE_FILE = new byte[256 * 1024];
+
+    public static void main(String[] args) throws Exception {
+        HttpServer server = null;
+        ServerSocket channelServer = null;
+        final String address;
+        final String channelAddress;
+        final String wid;
+        if (args.length >= 2) {
+            address = args[0];
+            channelAddress = address;
+            wid = args[1];
+        } else {
+            server = startStandIn();
+            address = "127.0.0.1:" + server.getAddress().getPort();
+            channelServer = startChannelStandIn();
+            channelAddress = "127.0.0.1:" + channelServer.getLocalPort();
+            wid = WID;
+            System.out.println("Stand-in server on " + address + ", channel on " + channelAddress);
+        }
+        Arrays.fill(LARGE_FILE, (byte) 'x');
+        final File upload = File.createTempFile("transport", ".bin");
+        upload.deleteOnExit();
+        com.google.common.io.Files.write(LARGE_FILE, upload);
+        final Endpoints endpoints = new Endpoints(address, false);
+        final List<ITransport> transports = Lists.newArrayList(Transports.create(Transports.JERSEY, endpoints), Transports.create(Transports.HTTP2, endpoints));
+        final Endpoints channelEndpoints = new Endpoints(channelAddress, false);
+        final ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Bench-%d").build());
+        for (int round = 0; round <= ROUNDS; round++) {
+            System.out.println(round == 0 ? "Warm up" : "Round " + round);
+            for (final ITransport transport : transports) {
+                final String clientID = transport.getClientID(wid);
+                final byte[] message = "{\"subject\":\"bench\"}".getBytes(StandardCharsets.UTF_8);
+                run(transport, "500 messages", 500, executor, i -> check(transport.postMessage(wid, clientID, message).status, 204));
+                final URL url = endpoints.getFileURL(wid, "bench/small.bin");
+                run(transport, "200 downloads 16KB", 200, executor, i -> {
+                    try (Download download = transport.download(url, false)) {
+                        check(download.getStatus(), 200);
+                        try (InputStream is = download.getStream()) {
+                            ByteStreams.copy(is, ByteStreams.nullOutputStream());
+                        }
+                    }
+                });
+                final Map<String, String> fields = ImmutableMap.of("sha1", "0");
+                run(transport, "50 uploads 256KB", 50, executor, i -> check(transport.upload(wid, upload, "bench/upload" + i + ".bin", fields, false).status, 201));
+                run(transport, "50 gzip uploads 256KB", 50, executor, i -> check(transport.upload(wid, upload, "bench/upload" + i + ".bin", fields, true).status, 201));
+                run(transport, "100 deletes", 100, executor, i -> check(transport.delete(wid, "bench/upload" + i + ".bin").status, 200));
+                events(transport, wid, clientID);
+                transport.close();
+                final ITransport channelTransport = Transports.create(transport.getName(), channelEndpoints);
+                channel(channelTransport, wid, clientID, executor);
+                channelTransport.close();
+            }
+        }
+        if (server != null) {
+            server.stop(0);
+        }
+        if (channelServer != null) {
+            channelServer.close();
+        }
+    }
+
+    private static interface Operation {
+        public void run(int i) throws IOException;
+    }
+
+    private static void check(int status, int expected) throws IOException {
+        if (status != expected) {
+            throw new IOException("Unexpected status " + status + ", expected " + expected);
+        }
+    }
+
+    private static void run(ITransport transport, String name, int count, ExecutorService executor, Operation op) throws Exception {
+        final AtomicInteger next = new AtomicInteger();
+        final long start = System.nanoTime();
+        final List<Future<?>> futures = Lists.newArrayList();
+        for (int t = 0; t < CONCURRENCY; t++) {
+            futures.add(executor.submit(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < count) {
+                    op.run(i);
+                }
+                return null;
+            }));
+        }
+        for (final Future<?> future : futures) {
+            future.get();
+        }
+        report(transport, name, count, System.nanoTime() - start);
+    }
+
+    private static void events(ITransport transport, String wid, String clientID) throws Exception {
+        final CountDownLatch received = new CountDownLatch(EVENTS);
+        final long start = System.nanoTime();
+        final IEventStream stream = transport.subscribe(wid, clientID, new IEventHandler() {
+            @Override
+            public void onEvent(String id, String data) {
+                received.countDown();
+            }
+
+            @Override
+            public String getLastEventId() {
+                return null;
+            }
+        });
+        if (!received.await(30, TimeUnit.SECONDS)) {
+            System.out.println("  " + transport.getName() + " received only " + (EVENTS - received.getCount()) + " events");
+            stream.close();
+            return;
+        }
+        report(transport, EVENTS + " events", EVENTS, System.nanoTime() - start);
+        stream.close();
+    }
+
+    /**
+     * Receives the events of the server over the channel, then sends messages
+     * until all of them are acknowledged
+     */
+    private static void channel(ITransport transport, String wid, String clientID, ExecutorService executor) throws Exception {
+        final CountDownLatch received = new CountDownLatch(EVENTS);
+        final MessageChannel channel = new MessageChannel();
+        long start = System.nanoTime();
+        final boolean connected = channel.connect(transport, wid, clientID, new IEventHandler() {
+            @Override
+            public void onEvent(String id, String data) {
+                if (data != null) {
+                    received.countDown();
+                }
+            }
+
+            @Override
+            public String getLastEventId() {
+                return null;
+            }
+        });
+        if (!connected) {
+            System.out.println("  " + transport.getName() + " provides no channel");
+            return;
+        }
+        if (!received.await(30, TimeUnit.SECONDS)) {
+            System.out.println("  " + transport.getName() + " received only " + (EVENTS - received.getCount()) + " events over the channel");
+            channel.shutdown();
+            return;
+        }
+        report(transport, EVENTS + " channel events", EVENTS, System.nanoTime() - start);
+        final Map<String, String> message = ImmutableMap.of("subject", "bench");
+        start = System.nanoTime();
+        final AtomicInteger next = new AtomicInteger();
+        final List<Future<?>> futures = Lists.newArrayList();
+        for (int t = 0; t < CONCURRENCY; t++) {
+            futures.add(executor.submit(() -> {
+                while (next.getAndIncrement() < 500) {
+                    channel.send(message);
+                }
+                return null;
+            }));
+        }
+        for (final Future<?> future : futures) {
+            future.get();
+        }
+        final long deadline = System.currentTimeMillis() + 30000;
+        while ((channel.getUnacknowledged() != 0) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(1);
+        }
+        if (channel.getUnacknowledged() != 0) {
+            System.out.println("  " + transport.getName() + " has " + channel.getUnacknowledged() + " messages without acknowledgement");
+        } else {
+            report(transport, "500 channel messages", 500, System.nanoTime() - start);
+        }
+        channel.shutdown();
+    }
+
+    private static void report(ITransport transport, String name, int count, long nanos) {
+        System.out.printf("  %-7s %-22s %9.2fms %9.0f ops/s%n", transport.getName(), name, nanos / 1e6, count / (nanos / 1e9));
+    }
+
+    private static HttpServer startStandIn() throws IOException {
+        // Without this the stand-in's delayed ACKs dominate every response with a body
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("StandIn-%d").build()));
+        server.createContext("/serverTime", ex -> respond(ex, 200, Long.toString(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8)));
+        server.createContext("/api/v0.1/streaming/workspace/", ex -> {
+            final String path = ex.getRequestURI().getPath();
+            if (path.endsWith("/clientID")) {
+                respond(ex, 200, "BENCHCLIENT".getBytes(StandardCharsets.UTF_8));
+            } else if (path.endsWith("/sse")) {
+                ex.getResponseHeaders().add("Content-Type", "text/event-stream");
+                ex.sendResponseHeaders(200, 0);
+                try (OutputStream os = ex.getResponseBody()) {
+                    for (int i = 0; i < EVENTS; i++) {
+                        os.write(("id: " + i + "\ndata: {\"subject\":\"bench\"}\n\n").getBytes(StandardCharsets.UTF_8));
+                        if ((i % 100) == 0) {
+                            os.flush();
+                        }
+                    }
+                    os.flush();
+                    // Keep the stream open until the client closes it
+                    while (true) {
+                        Thread.sleep(1000);
+                        os.write(":\n\n".getBytes(StandardCharsets.UTF_8));
+                        os.flush();
+                    }
+                } catch (final IOException | InterruptedException e) {
+                }
+            } else {
+                drain(ex);
+                respond(ex, 204, null);
+            }
+        });
+        server.createContext("/api/v0.1/workspace/", ex -> {
+            final String method = ex.getRequestMethod();
+            drain(ex);
+            if ("POST".equals(method)) {
+                respond(ex, 201, "OK".getBytes(StandardCharsets.UTF_8));
+            } else if ("DELETE".equals(method)) {
+                respond(ex, 200, "OK".getBytes(StandardCharsets.UTF_8));
+            } else {
+                respond(ex, 200, SMALL_FILE);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static final Pattern SEQ = Pattern.compile("\"seq\":(\\d+)");
+
+    /**
+     * A WebSocket server that sends {@link #EVENTS} events to every
+     * connection and acknowledges every message. Frames are expected to be
+     * unfragmented.
+     */
+    private static ServerSocket startChannelStandIn() throws IOException {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final ExecutorService connections = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ChannelStandIn-%d").build());
+        connections.execute(() -> {
+            while (!server.isClosed()) {
+                try {
+                    final Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    connections.execute(() -> serveChannel(socket, connections));
+                } catch (final IOException e) {
+                    // Closed
+                }
+            }
+        });
+        return server;
+    }
+
+    private static void serveChannel(Socket socket, ExecutorService connections) {
+        try (Socket s = socket) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            final OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            String key = null;
+            String line;
+            while (((line = readLine(in)) != null) && !line.isEmpty()) {
+                if (line.toLowerCase().startsWith("sec-websocket-key:")) {
+                    key = line.substring(line.indexOf(':') + 1).trim();
+                }
+            }
+            final String accept = BaseEncoding.base64()
+                    .encode(Hashing.sha1().hashString(key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11", StandardCharsets.US_ASCII).asBytes());
+            out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: " + accept + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            connections.execute(() -> {
+                try {
+                    for (int i = 0; i < EVENTS; i++) {
+                        writeFrame(out, 1, ("{\"type\":\"msg\",\"id\":\"" + i + "\",\"data\":{\"subject\":\"bench\"}}").getBytes(StandardCharsets.UTF_8));
+                    }
+                } catch (final IOException e) {
+                }
+            });
+            while (true) {
+                final int b0 = in.readUnsignedByte();
+                final int b1 = in.readUnsignedByte();
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                final byte[] mask = new byte[4];
+                if ((b1 & 0x80) != 0) {
+                    in.readFully(mask);
+                }
+                final byte[] payload = new byte[(int) length];
+                in.readFully(payload);
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i % 4];
+                }
+                final int opcode = b0 & 0x0F;
+                if (opcode == 8) {
+                    writeFrame(out, 8, new byte[0]);
+                    return;
+                }
+                if (opcode == 9) {
+                    writeFrame(out, 10, payload);
+                } else if (opcode == 1) {
+                    final Matcher matcher = SEQ.matcher(new String(payload, StandardCharsets.UTF_8));
+                    if (matcher.find()) {
+                        writeFrame(out, 1, ("{\"type\":\"ack\",\"seq\":" + matcher.group(1) + "}").getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            // Closed by the client
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                return null;
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void writeFrame(OutputStream out, int opcode, byte[] payload) throws IOException {
+        synchronized (out) {
+            out.write(0x80 | opcode);
+            if (payload.length < 126) {
+                out.write(payload.length);
+            } else {
+                out.write(126);
+                out.write(payload.length >>> 8);
+                out.write(payload.length & 0xFF);
+            }
+            out.write(payload);
+            out.flush();
+        }
+    }
+
+    private static void drain(HttpExchange ex) throws IOException {
+        try (InputStream is = ex.getRequestBody()) {
+            ByteStreams.copy(is, ByteStreams.nullOutputStream());
+        }
+    }
+
+    private static void respond(HttpExchange ex, int status, byte[] body) throws IOException {
+        if (body == null) {
+            ex.sendResponseHeaders(status, -1);
+        } else {
+            ex.sendResponseHeaders(status, body.length);
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(body);
+            }
+        }
+        ex.close();
+    }
+}
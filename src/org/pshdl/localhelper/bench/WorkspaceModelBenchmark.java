@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper.bench;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.pshdl.localhelper.WorkspaceModel;
+import org.pshdl.localhelper.WorkspaceModel.FileEntry;
+import org.pshdl.rest.models.FileRecord;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+
+/**
+ * Compares the linear scan of the RepoInfo files that was used to apply
+ * updates with the indexed {@link WorkspaceModel}. Run with the number of
+ * files as argument, the default is 50000. The model applies its changes on
+ * its loop, so the snapshot time includes applying the outstanding ones.
+ */
+public class WorkspaceModelBenchmark {
+
+    public static void main(String[] args) {
+        final int files = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        final List<FileRecord> initial = createRecords(files, 0);
+        final List<FileRecord> updates = createRecords(files, 1);
+        final Random r = new Random(42);
+        final List<FileRecord> burst = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            burst.add(updates.get(r.nextInt(files)));
+        }
+        for (int round = 0; round < 3; round++) {
+            System.out.println("Round " + round + " with " + files + " files");
+            linearScan(initial, updates, burst);
+            indexed(initial, updates, burst);
+        }
+        memory(files);
+    }
+
+    private static List<FileRecord> createRecords(int files, int version) {
+        final List<FileRecord> records = Lists.newArrayListWithCapacity(files);
+        for (int i = 0; i < files; i++) {
+            final FileRecord record = new FileRecord();
+            // Paths are created anew, as they are when parsed from a message
+            record.relPath = new StringBuilder("src/module").append(i / 100).append("/unit").append(i).append(".pshdl").toString();
+            record.lastModified = 1400000000000L + (version * 1000) + i;
+            record.hash = Hashing.sha1().hashInt((i * 31) + version).toString();
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static void linearScan(List<FileRecord> initial, List<FileRecord> updates, List<FileRecord> burst) {
+        final Set<FileRecord> repoFiles = Sets.newLinkedHashSet();
+        long start = System.nanoTime();
+        // What the initial sync did with every FileInfo of the RepoInfo
+        for (final FileRecord record : initial) {
+            updateLinear(repoFiles, record);
+        }
+        final long sync = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (final FileRecord record : burst) {
+            updateLinear(repoFiles, record);
+        }
+        final long burstTime = System.nanoTime() - start;
+        print("linear scan", sync, burstTime, -1);
+    }
+
+    private static void updateLinear(Set<FileRecord> repoFiles, FileRecord remote) {
+        boolean found = false;
+        for (final Iterator<FileRecord> iterator = repoFiles.iterator(); iterator.hasNext();) {
+            final FileRecord local = iterator.next();
+            if (local.relPath.equals(remote.relPath)) {
+                found = true;
+                if (remote != local) {
+                    iterator.remove();
+                }
+            }
+        }
+        if (!found) {
+            repoFiles.add(remote);
+        }
+    }
+
+    private static void indexed(List<FileRecord> initial, List<FileRecord> updates, List<FileRecord> burst) {
+        final WorkspaceModel model = new WorkspaceModel();
+        long start = System.nanoTime();
+        for (final FileRecord record : initial) {
+            model.put(record);
+        }
+        final long sync = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (final FileRecord record : burst) {
+            model.put(record);
+        }
+        final long burstTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        final int size = model.snapshot().getPaths().size();
+        final long snapshot = System.nanoTime() - start;
+        if (size != initial.size()) {
+            throw new IllegalStateException("Expected " + initial.size() + " files, found:" + size);
+        }
+        print("indexed", sync, burstTime, snapshot);
+    }
+
+    private static void print(String name, long sync, long burst, long snapshot) {
+        System.out.printf("  %-12s initial sync %9.2fms  1000 updates %9.3fms%s%n", name, sync / 1e6, burst / 1e6, snapshot >= 0 ? String.format("  snapshot %7.3fms", snapshot / 1e6) : "");
+    }
+
+    private static void memory(int files) {
+        long before = usedMemory();
+        final List<FileRecord> kept = createRecords(files, 0);
+        final long recordBytes = usedMemory() - before;
+        before = usedMemory();
+        final WorkspaceModel model = createModel(files);
+        final long modelBytes = usedMemory() - before;
+        System.out.printf("Memory per file: FileRecord %d bytes, model entry including index %d bytes (%d files kept)%n", recordBytes / files, modelBytes / files,
+                kept.size() + model.size());
+    }
+
+    private static WorkspaceModel createModel(int files) {
+        final WorkspaceModel model = new WorkspaceModel();
+        for (final FileRecord record : createRecords(files, 0)) {
+            model.put(record);
+        }
+        return model;
+    }
+
+    private static long usedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
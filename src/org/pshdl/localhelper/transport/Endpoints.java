@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper.transport;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The URLs of the server API
+ */
+public class Endpoints {
+    private final String server;
+    private final boolean secure;
+
+    public Endpoints(String server, boolean secure) {
+        this.server = server;
+        this.secure = secure;
+    }
+
+    private String getProtocol() {
+        return secure ? "https://" : "http://";
+    }
+
+    /**
+     * @return the protocol and the server, which identifies the connection
+     */
+    public String getBaseURL() {
+        return getProtocol() + server;
+    }
+
+    public String getWorkspaceURL(String workspaceID) {
+        return getProtocol() + server + "/api/v0.1/workspace/" + workspaceID.toUpperCase();
+    }
+
+    public String getStreamingURL(String workspaceID) {
+        return getProtocol() + server + "/api/v0.1/streaming/workspace/" + workspaceID.toUpperCase();
+    }
+
+    public String getChannelURL(String workspaceID, String clientID) {
+        return (secure ? "wss://" : "ws://") + server + "/api/v0.1/streaming/workspace/" + workspaceID.toUpperCase() + "/" + clientID + "/channel";
+    }
+
+    public String getServerTimeURL() {
+        return "http://" + server + "/serverTime";
+    }
+
+    /**
+     * @param name
+     *            either relative to the workspace, or an absolute path on the
+     *            server
+     */
+    public URL getFileURL(String workspaceID, String name) throws MalformedURLException {
+        if (name.charAt(0) != '/') {
+            return new URL(getWorkspaceURL(workspaceID) + "/" + name + "?plain=true");
+        }
+        return new URL(getProtocol() + server + name + "?plain=true");
+    }
+
+    public static String withQuery(String url, Map<String, String> query) {
+        if ((query == null) || query.isEmpty()) {
+            return url;
+        }
+        final StringBuilder sb = new StringBuilder(url);
+        char sep = url.indexOf('?') == -1 ? '?' : '&';
+        try {
+            for (final Entry<String, String> e : query.entrySet()) {
+                sb.append(sep).append(URLEncoder.encode(e.getKey(), "UTF-8")).append('=').append(URLEncoder.encode(e.getValue(), "UTF-8"));
+                sep = '&';
+            }
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    public String getServer() {
+        return server;
+    }
+}
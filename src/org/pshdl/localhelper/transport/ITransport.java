@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper.transport;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+import org.pshdl.localhelper.JSONHelper;
+import org.pshdl.rest.models.RepoInfo;
+
+/**
+ * The requests the local helper makes to the server. Implementations are
+ * thread safe and may be used again after they have been closed.
+ */
+public interface ITransport extends Closeable {
+
+    public static final class Result {
+        public final int status;
+        /**
+         * The body of the response, only read for failed requests
+         */
+        public final String message;
+
+        public Result(int status, String message) {
+            this.status = status;
+            this.message = message;
+        }
+    }
+
+    public static interface Download extends Closeable {
+        public int getStatus();
+
+        /**
+         * @return the content, already decoded if it was compressed
+         */
+        public InputStream getStream() throws IOException;
+    }
+
+    public static interface IEventHandler {
+        public void onEvent(String id, String data);
+
+        /**
+         * @return the ID of the last processed event, sent when the stream is
+         *         opened so that the server can replay what was missed
+         */
+        public String getLastEventId();
+    }
+
+    public static interface IEventStream extends Closeable {
+        public boolean isOpen();
+
+        @Override
+        public void close();
+    }
+
+    /**
+     * A bidirectional connection that carries text frames
+     */
+    public static interface IFrameSocket extends IEventStream {
+        /**
+         * Queues the frame without waiting for it to be sent. Frames are sent
+         * in the order they were queued.
+         */
+        public void sendText(String frame);
+    }
+
+    public static interface IFrameListener {
+        /**
+         * @param socket
+         *            the socket that received the frame, for replies
+         */
+        public void onFrame(IFrameSocket socket, String frame);
+
+        /**
+         * Called for the keep-alive pings of the server
+         */
+        public void onPing();
+    }
+
+    /**
+     * @return a short name for logging and benchmarks
+     */
+    public String getName();
+
+    public Endpoints getEndpoints();
+
+    public String getClientID(String wid) throws IOException;
+
+    public default RepoInfo getRepoInfo(String wid, boolean acceptGzip) throws IOException {
+        final String json = getJSON(getEndpoints().getWorkspaceURL(wid), null, acceptGzip);
+        if (json == null) {
+            throw new IOException("No such workspace:" + wid);
+        }
+        return JSONHelper.getReader(RepoInfo.class).<RepoInfo> readValue(json);
+    }
+
+    /**
+     * @return the JSON document, or <code>null</code> if the server answered
+     *         404
+     */
+    public String getJSON(String url, Map<String, String> query, boolean acceptGzip) throws IOException;
+
+    public long getServerTime() throws IOException;
+
+    public Result postMessage(String wid, String clientID, byte[] message) throws IOException;
+
+    /**
+     * Uploads the file as multipart form, followed by the given fields. The
+     * file is streamed, if compress is set the whole form is gzip encoded
+     * while it is sent.
+     */
+    public Result upload(String wid, File file, String name, Map<String, String> fields, boolean compress) throws IOException;
+
+    public Download download(URL url, boolean acceptGzip) throws IOException;
+
+    public Result delete(String wid, String relPath) throws IOException;
+
+    public IEventStream subscribe(String wid, String clientID, IEventHandler handler) throws IOException;
+
+    /**
+     * Opens a bidirectional channel to the server that replaces the event
+     * stream and the message posts.
+     *
+     * @param lastEventId
+     *            the ID of the last processed event, or <code>null</code>
+     * @return the socket, or <code>null</code> if the transport or the server
+     *         does not provide a channel
+     */
+    public default IFrameSocket openChannel(String wid, String clientID, String lastEventId, IFrameListener listener) throws IOException {
+        return null;
+    }
+}
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.GZIPInputStream;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Variant;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnector;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.media.multipart.Boundary;
+import org.glassfish.jersey.media.multipart.FormDataBodyPart;
+import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
+import org.glassfish.jersey.media.multipart.FormDataMultiPart;
+import org.glassfish.jersey.media.multipart.MultiPartFeature;
+import org.glassfish.jersey.media.sse.EventSource;
+import org.glassfish.jersey.media.sse.InboundEvent;
+import org.glassfish.jersey.media.sse.SseFeature;
+import org.glassfish.jersey.message.GZipEncoder;
+
+/**
+ * The transport over the Jersey client. All requests and the event stream go
+ * through one client with the apache connector, which streams request bodies
+ * and keeps the connections in a pool.
+ */
+public class JerseyTransport implements ITransport {
+
+    public static final String GZIP = "gzip";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String LAST_EVENT_ID_HEADER = "Last-Event-ID";
+    /**
+     * The bound of the pooled connections. Every event stream holds one, the
+     * transfers are bounded by the scheduler, so it is set well above both.
+     */
+    private static final int MAX_CONNECTIONS = Integer.getInteger("PSHDL_MAX_CONNECTIONS", 256);
+
+    private final Endpoints endpoints;
+    private Client client;
+
+    public JerseyTransport(Endpoints endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    @Override
+    public String getName() {
+        return "jersey";
+    }
+
+    @Override
+    public Endpoints getEndpoints() {
+        return endpoints;
+    }
+
+    public static Client createClient(boolean apache) {
+        return createClient(apache, null);
+    }
+
+    /**
+     * @param connections
+     *            the connection manager of the apache connector, without one
+     *            the connector uses a single connection
+     */
+    private static Client createClient(boolean apache, ClientConnectionManager connections) {
+        final ClientConfig clientConfig = new ClientConfig();
+        clientConfig.register(SseFeature.class);
+        clientConfig.register(MultiPartFeature.class);
+        // Only encodes or decodes entities that carry a gzip Content-Encoding,
+        // so the event stream is left alone
+        clientConfig.register(GZipEncoder.class);
+        if (apache) {
+            if (connections != null) {
+                clientConfig.property(ApacheClientProperties.CONNECTION_MANAGER, connections);
+            }
+            clientConfig.connector(new ApacheConnector(clientConfig));
+        }
+        return ClientBuilder.newClient(clientConfig);
+    }
+
+    private synchronized Client getClient() {
+        if (client == null) {
+            final PoolingClientConnectionManager connections = new PoolingClientConnectionManager();
+            connections.setMaxTotal(MAX_CONNECTIONS);
+            connections.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+            client = createClient(true, connections);
+        }
+        return client;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+
+    @Override
+    public String getClientID(String wid) {
+        final WebTarget resource = getClient().target(endpoints.getStreamingURL(wid));
+        return resource.path("clientID").request().get(String.class);
+    }
+
+    @Override
+    public String getJSON(String url, Map<String, String> query, boolean acceptGzip) throws IOException {
+        WebTarget target = getClient().target(url);
+        if (query != null) {
+            for (final Entry<String, String> e : query.entrySet()) {
+                target = target.queryParam(e.getKey(), e.getValue());
+            }
+        }
+        Invocation.Builder request = target.request().accept(MediaType.APPLICATION_JSON);
+        if (acceptGzip) {
+            request = request.acceptEncoding(GZIP);
+        }
+        final Response response = request.get();
+        final int status = response.getStatus();
+        if (status == 404) {
+            response.close();
+            return null;
+        }
+        if (status != 200) {
+            response.close();
+            throw new IOException("Request for " + target.getUri() + " failed with status:" + status);
+        }
+        return response.readEntity(String.class);
+    }
+
+    @Override
+    public long getServerTime() {
+        return Long.parseLong(getClient().target(endpoints.getServerTimeURL()).request().get(String.class));
+    }
+
+    @Override
+    public Result postMessage(String wid, String clientID, byte[] message) {
+        final Response response = getClient().target(endpoints.getStreamingURL(wid)).path(clientID).request().post(Entity.entity(message, MediaType.APPLICATION_JSON));
+        return toResult(response, 204);
+    }
+
+    @Override
+    public Result upload(String wid, File file, String name, Map<String, String> fields, boolean compress) throws IOException {
+        try (final FormDataMultiPart formDataMultiPart = new FormDataMultiPart()) {
+            final FormDataContentDisposition dispo = FormDataContentDisposition//
+                    .name("file")//
+                    .fileName(name)//
+                    .size(file.length())//
+                    .modificationDate(new Date(file.lastModified())).build();
+            formDataMultiPart.bodyPart(new FormDataBodyPart(dispo, file, MediaType.APPLICATION_OCTET_STREAM_TYPE));
+            for (final Entry<String, String> e : fields.entrySet()) {
+                formDataMultiPart.field(e.getKey(), e.getValue());
+            }
+            // The apache connector sends the headers before the entity is
+            // written, so the boundary has to be known up front. The encoding
+            // has to be part of the variant, a Content-Encoding header would
+            // be replaced by the one of the entity.
+            final MediaType mediaType = Boundary.addBoundary(formDataMultiPart.getMediaType());
+            final Variant variant = new Variant(mediaType, (Locale) null, compress ? GZIP : null);
+            final Response response = getClient().target(endpoints.getWorkspaceURL(wid)).request(MediaType.TEXT_PLAIN_TYPE).post(Entity.entity(formDataMultiPart, variant));
+            return toResult(response, 201);
+        }
+    }
+
+    @Override
+    public Result delete(String wid, String relPath) {
+        final Response response = getClient().target(endpoints.getWorkspaceURL(wid)).path("delete").path(relPath).request(MediaType.TEXT_PLAIN_TYPE).delete();
+        return toResult(response, 200);
+    }
+
+    private static Result toResult(Response response, int expected) {
+        final int status = response.getStatus();
+        if (status == expected) {
+            response.close();
+            return new Result(status, null);
+        }
+        return new Result(status, response.readEntity(String.class));
+    }
+
+    @Override
+    public Download download(URL url, boolean acceptGzip) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        // Whether a response is worth compressing is up to the server
+        if (acceptGzip) {
+            connection.setRequestProperty(HttpHeaders.ACCEPT_ENCODING, GZIP);
+        }
+        final int responseCode = connection.getResponseCode();
+        return new Download() {
+            @Override
+            public int getStatus() {
+                return responseCode;
+            }
+
+            @Override
+            public InputStream getStream() throws IOException {
+                final InputStream is = connection.getInputStream();
+                if (GZIP.equalsIgnoreCase(connection.getContentEncoding())) {
+                    return new GZIPInputStream(is, BUFFER_SIZE);
+                }
+                return is;
+            }
+
+            @Override
+            public void close() {
+                connection.disconnect();
+            }
+        };
+    }
+
+    @Override
+    public IEventStream subscribe(String wid, String clientID, IEventHandler handler) {
+        final WebTarget path = getClient().target(endpoints.getStreamingURL(wid)).path(clientID).path("sse").register(new ClientRequestFilter() {
+            @Override
+            public void filter(ClientRequestContext requestContext) throws IOException {
+                final String id = handler.getLastEventId();
+                if (id != null) {
+                    requestContext.getHeaders().putSingle(LAST_EVENT_ID_HEADER, id);
+                }
+            }
+        });
+        System.out.println("JerseyTransport.subscribe()" + path.getUri());
+        final EventSource source = new EventSource(path, false) {
+            @Override
+            public void onEvent(InboundEvent inboundEvent) {
+                handler.onEvent(inboundEvent.getId(), inboundEvent.readData(String.class));
+            }
+        };
+        source.open();
+        return new IEventStream() {
+            @Override
+            public boolean isOpen() {
+                return source.isOpen();
+            }
+
+            @Override
+            public void close() {
+                source.close();
+            }
+        };
+    }
+}
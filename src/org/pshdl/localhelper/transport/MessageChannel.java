@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper.transport;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.SortedMap;
+
+import org.pshdl.localhelper.JSONHelper;
+import org.pshdl.localhelper.transport.ITransport.IEventHandler;
+import org.pshdl.localhelper.transport.ITransport.IEventStream;
+import org.pshdl.localhelper.transport.ITransport.IFrameListener;
+import org.pshdl.localhelper.transport.ITransport.IFrameSocket;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Carries the messages of a session in both directions over an
+ * {@link IFrameSocket}, instead of an event stream and one POST per message.
+ * Every frame is a small JSON envelope:
+ * <ul>
+ * <li><code>{"type":"msg","seq":4,"data":{...}}</code> a message of the
+ * client, numbered consecutively</li>
+ * <li><code>{"type":"ack","seq":4}</code> the server received all messages up
+ * to 4</li>
+ * <li><code>{"type":"msg","id":"17","data":{...}}</code> an event of the
+ * server</li>
+ * <li><code>{"type":"ack","id":"17"}</code> the client handled the event</li>
+ * <li><code>{"type":"ping"}</code> a keep-alive of the server</li>
+ * </ul>
+ * Messages are kept until the server acknowledged them. The channel outlives
+ * its sockets, when it is connected again the messages that were not
+ * acknowledged are sent again. The server has to ignore sequence numbers it
+ * already received.
+ */
+public class MessageChannel implements IEventStream {
+
+    public static final String MSG = "msg";
+    public static final String ACK = "ack";
+    public static final String PING = "ping";
+
+    public static class Frame {
+        @JsonProperty
+        public String type;
+        @JsonProperty
+        public Long seq;
+        @JsonProperty
+        public String id;
+        @JsonProperty
+        public Object data;
+
+        public Frame() {
+        }
+
+        public Frame(String type, Long seq, String id, Object data) {
+            this.type = type;
+            this.seq = seq;
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    private static final class Pending {
+        public final Object message;
+        public final String frame;
+
+        public Pending(Object message, String frame) {
+            this.message = message;
+            this.frame = frame;
+        }
+    }
+
+    private static final ObjectMapper mapper = JSONHelper.getMapper();
+    private static final ObjectWriter frameWriter = mapper.writer();
+
+    private final SortedMap<Long, Pending> unacknowledged = Maps.newTreeMap();
+    private long nextSeq;
+    private IFrameSocket socket;
+    private boolean shutdown;
+
+    /**
+     * Opens a new socket for the channel and sends the messages that were not
+     * acknowledged yet. A previous socket is closed.
+     *
+     * @return <code>false</code> if the transport or the server do not
+     *         provide a channel
+     */
+    public boolean connect(ITransport transport, String wid, String clientID, IEventHandler handler) throws IOException {
+        final IFrameSocket newSocket = transport.openChannel(wid, clientID, handler.getLastEventId(), new Connection(handler));
+        if (newSocket == null) {
+            return false;
+        }
+        final IFrameSocket old;
+        synchronized (this) {
+            if (shutdown) {
+                newSocket.close();
+                return true;
+            }
+            old = socket;
+            socket = newSocket;
+            for (final Pending pending : unacknowledged.values()) {
+                newSocket.sendText(pending.frame);
+            }
+        }
+        if (old != null) {
+            old.close();
+        }
+        return true;
+    }
+
+    /**
+     * Queues the message without waiting for it to be sent. While the channel
+     * is disconnected the message is kept until it is connected again.
+     *
+     * @return <code>false</code> if the channel was shut down, the message
+     *         has to be sent by other means
+     */
+    public synchronized boolean send(Object message) throws JsonProcessingException {
+        if (shutdown) {
+            return false;
+        }
+        final long seq = nextSeq++;
+        final String frame = frameWriter.writeValueAsString(new Frame(MSG, seq, null, message));
+        unacknowledged.put(seq, new Pending(message, frame));
+        if ((socket != null) && socket.isOpen()) {
+            socket.sendText(frame);
+        }
+        return true;
+    }
+
+    private synchronized void acknowledge(long seq) {
+        unacknowledged.headMap(seq + 1).clear();
+    }
+
+    /**
+     * @return the number of messages the server did not acknowledge yet
+     */
+    public synchronized int getUnacknowledged() {
+        return unacknowledged.size();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return (socket != null) && socket.isOpen();
+    }
+
+    /**
+     * Closes the current socket, messages are kept until the channel is
+     * connected again
+     */
+    @Override
+    public synchronized void close() {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    /**
+     * Closes the channel for good.
+     *
+     * @return the messages that were not acknowledged, in the order they were
+     *         sent
+     */
+    public synchronized List<Object> shutdown() {
+        close();
+        shutdown = true;
+        final List<Object> res = Lists.newArrayListWithCapacity(unacknowledged.size());
+        for (final Pending pending : unacknowledged.values()) {
+            res.add(pending.message);
+        }
+        unacknowledged.clear();
+        return res;
+    }
+
+    /**
+     * Dispatches the frames of one socket. An event is acknowledged once the
+     * handler returned, so a handler that blocks holds back the server.
+     */
+    private final class Connection implements IFrameListener {
+        private final IEventHandler handler;
+
+        public Connection(IEventHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void onFrame(IFrameSocket socket, String frame) {
+            try {
+                final JsonNode node = mapper.readTree(frame);
+                final String type = node.path("type").asText();
+                if (ACK.equals(type)) {
+                    acknowledge(node.path("seq").asLong());
+                } else if (MSG.equals(type)) {
+                    final JsonNode idNode = node.get("id");
+                    final String id = (idNode == null) || idNode.isNull() ? null : idNode.asText();
+                    handler.onEvent(id, frameWriter.writeValueAsString(node.path("data")));
+                    if (id != null) {
+                        socket.sendText(frameWriter.writeValueAsString(new Frame(ACK, null, id, null)));
+                    }
+                } else if (PING.equals(type)) {
+                    onPing();
+                }
+            } catch (final IOException e) {
+                System.out.println("MessageChannel.onFrame() Failed to handle frame:" + frame + " " + e);
+            }
+        }
+
+        @Override
+        public void onPing() {
+            handler.onEvent(null, null);
+        }
+    }
+}
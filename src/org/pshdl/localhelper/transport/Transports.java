@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper.transport;
+
+/**
+ * Creates the transport selected by the <code>PSHDL_TRANSPORT</code> property,
+ * either <code>jersey</code> (the default) or <code>http2</code>. The HTTP/2
+ * transport needs Java 11, on older runtimes the Jersey one is used instead.
+ */
+public class Transports {
+
+    public static final String JERSEY = "jersey";
+    public static final String HTTP2 = "http2";
+    private static final String HTTP2_CLASS = "org.pshdl.localhelper.transport.Http2Transport";
+
+    public static ITransport create(Endpoints endpoints) {
+        return create(System.getProperty("PSHDL_TRANSPORT", JERSEY), endpoints);
+    }
+
+    public static ITransport create(String name, Endpoints endpoints) {
+        if (HTTP2.equalsIgnoreCase(name)) {
+            try {
+                return (ITransport) Class.forName(HTTP2_CLASS).getConstructor(Endpoints.class).newInstance(endpoints);
+            } catch (final Exception | LinkageError e) {
+                System.err.println("Transports.create() The HTTP/2 transport is not available on this runtime, using Jersey: " + e);
+            }
+        } else if (!JERSEY.equalsIgnoreCase(name)) {
+            throw new IllegalArgumentException("Unknown transport:" + name);
+        }
+        return new JerseyTransport(endpoints);
+    }
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * PSHDL is a library and (trans-)compiler for PSHDL input. It generates
+ *     output suitable for implementation or simulation of it.
+ *
+ *     Copyright (C) 2014 Karsten Becker (feedback (at) pshdl (dot) org)
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     This License does not grant permission to use the trade names, trademarks,
+ *     service marks, or product names of the Licensor, except as required for
+ *     reasonable and customary use in describing the origin of the Work.
+ *
+ * Contributors:
+ *     Karsten Becker - initial API and implementation
+ ******************************************************************************/
+package org.pshdl.localhelper.xilinx;
+
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.pshdl.localhelper.ReportParser;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Parses the reports of XST, map, par and trce as they are written into the xflow log files
+ */
+public class XilinxReportParser extends ReportParser {
+    private final Matcher frequency = Pattern.compile("Maximum [Ff]requency:\\s*(" + DECIMAL + ")\\s*MHz").matcher("");
+    private final Matcher slack = Pattern.compile("^\\s*Slack(?: \\(setup path\\))?:\\s*(" + DECIMAL + ")\\s*ns").matcher("");
+    private final Matcher luts = Pattern.compile("Number of Slice LUTs:\\s*(" + COUNT + ")").matcher("");
+    private final Matcher registers = Pattern.compile("Number of Slice (?:Registers|Flip Flops):\\s*(" + COUNT + ")").matcher("");
+    private final Matcher ios = Pattern.compile("Number of bonded IOBs:\\s*(" + COUNT + ")").matcher("");
+    private final Matcher brams = Pattern.compile("Number of (RAMB\\w+|Block RAM/FIFO)s?:\\s*(" + COUNT + ")").matcher("");
+    private final Map<String, Integer> bramsByType = Maps.newHashMap();
+
+    @Override
+    protected void parseMetrics(CharSequence line) {
+        if (line.length() == 0) {
+            return;
+        }
+        final char first = line.charAt(0);
+        if ((first == 'W') && startsWith(line, "WARNING:")) {
+            metrics.warnings++;
+            return;
+        }
+        if ((first == 'E') && startsWith(line, "ERROR:")) {
+            metrics.errors++;
+            return;
+        }
+        if (find(frequency, line)) {
+            updateFmax(Double.parseDouble(frequency.group(1)));
+        } else if (find(slack, line)) {
+            updateWorstSlack(Double.parseDouble(slack.group(1)));
+        } else if (find(luts, line)) {
+            metrics.luts = parseInt(luts.group(1));
+        } else if (find(registers, line)) {
+            metrics.flipFlops = parseInt(registers.group(1));
+        } else if (find(ios, line)) {
+            metrics.ios = parseInt(ios.group(1));
+        } else if (find(brams, line)) {
+            // Different RAM primitives are reported on separate lines, map repeats them after XST
+            bramsByType.put(brams.group(1), parseInt(brams.group(2)));
+            int sum = 0;
+            for (final Integer count : bramsByType.values()) {
+                sum += count;
+            }
+            metrics.brams = sum;
+        }
+    }
+}
@@ -37,6 +37,7 @@ import org.pshdl.localhelper.ISynthesisTool;
 import org.pshdl.localhelper.JSONHelper;
 import org.pshdl.localhelper.SynthesisInvoker;
 import org.pshdl.localhelper.SynthesisInvoker.IProgressReporter;
+import org.pshdl.localhelper.SynthesisMetrics;
 import org.pshdl.model.utils.services.IOutputProvider.MultiOption;
 import org.pshdl.rest.models.CompileInfo;
 import org.pshdl.rest.models.FileRecord;
@@ -87,48 +88,58 @@ public class XilinxSynthesis implements ISynthesisTool {
                 "-p", board.fpga.partNumber, //
                 "-synth", "xst_mixed.opt", //
                 prjFileName);
-        final Process synProcess = SynthesisInvoker.runProcess(synDir, synProcessBuilder, timeOut, "synthesis", 0.2, 0.15, reporter);
+        final Process synProcess = SynthesisInvoker.runStage(synDir, synProcessBuilder, timeOut, "synthesis", 0.1, 0.4, reporter, null);
         final CompileInfo info = new CompileInfo();
         info.setCreated(System.currentTimeMillis());
         info.setCreator(SynthesisInvoker.SYNTHESIS_CREATOR);
-        sendXFlowLog(synDir, reporter, info, "synthesis.log");
+        final SynthesisMetrics metrics = new SynthesisMetrics();
+        sendXFlowLog(synDir, reporter, info, "synthesis.log", metrics);
+        String error = null;
         if (synProcess.exitValue() != 0) {
-            reporter.reportProgress(ProgressType.error, null, "Synthesis did not exit normally, exit code was:" + synProcess.exitValue());
+            error = "Synthesis did not exit normally, exit code was:" + synProcess.exitValue();
         } else {
             final ProcessBuilder implProcessBuilder = new ProcessBuilder(//
                     XILINX_XFLOW.getAbsolutePath(), //
                     "-p", board.fpga.partNumber, //
                     "-implement", "balanced.opt", //
                     wrappedModule);
-            final Process implProcess = SynthesisInvoker.runProcess(synDir, implProcessBuilder, 2 * timeOut, "implementation", 0.4, 0.15, reporter);
-            sendXFlowLog(synDir, reporter, info, "implementation.log");
+            final Process implProcess = SynthesisInvoker.runStage(synDir, implProcessBuilder, 2 * timeOut, "implementation", 0.4, 0.8, reporter, null);
+            sendXFlowLog(synDir, reporter, info, "implementation.log", metrics);
             if (implProcess.exitValue() != 0) {
-                reporter.reportProgress(ProgressType.error, null, "Implementation did not exit normally, exit code was:" + implProcess.exitValue());
+                error = "Implementation did not exit normally, exit code was:" + implProcess.exitValue();
             } else {
                 final ProcessBuilder bitgenProcessBuilder = new ProcessBuilder(//
                         XILINX_XFLOW.getAbsolutePath(), //
                         "-p", board.fpga.partNumber, //
                         "-config", "bitgen.opt", //
                         wrappedModule);
-                final Process bitGenProcess = SynthesisInvoker.runProcess(synDir, bitgenProcessBuilder, timeOut, "bitgen", 0.8, 0.15, reporter);
-                sendXFlowLog(synDir, reporter, info, "bitgen.log");
+                final Process bitGenProcess = SynthesisInvoker.runStage(synDir, bitgenProcessBuilder, timeOut, "bitgen", 0.8, 1.0, reporter, null);
+                sendXFlowLog(synDir, reporter, info, "bitgen.log", metrics);
                 if (bitGenProcess.exitValue() != 0) {
-                    reporter.reportProgress(ProgressType.error, null, "Bit file generation did not exit normally, exit code was:" + bitGenProcess.exitValue());
-                } else {
-                    final FileRecord record = reporter.reportFile(info, new File(synDir, wrappedModule + ".bit"), topModule + ".bit");
-                    reporter.reportProgress(ProgressType.progress, 1.0, "Bitstream creation succeeded!");
-                    final ObjectWriter writer = JSONHelper.getWriter();
-                    reporter.reportProgress(ProgressType.done, null, writer.writeValueAsString(record));
-                    return info;
+                    error = "Bit file generation did not exit normally, exit code was:" + bitGenProcess.exitValue();
                 }
             }
         }
+        // Once per run, with what the stages that ran reported
+        SynthesisInvoker.reportMetrics(reporter, info, JSONHelper.getWriter(), synDir, topModule, metrics);
+        if (error != null) {
+            reporter.reportProgress(ProgressType.error, null, error);
+            return info;
+        }
+        final FileRecord record = reporter.reportFile(info, new File(synDir, wrappedModule + ".bit"), topModule + ".bit");
+        reporter.reportProgress(ProgressType.progress, 1.0, "Bitstream creation succeeded!");
+        final ObjectWriter writer = JSONHelper.getWriter();
+        reporter.reportProgress(ProgressType.done, null, writer.writeValueAsString(record));
         return info;
     }
 
-    public void sendXFlowLog(File synDir, IProgressReporter reporter, final CompileInfo info, final String synLog) throws IOException, JsonProcessingException {
+    public void sendXFlowLog(File synDir, IProgressReporter reporter, final CompileInfo info, final String synLog, SynthesisMetrics metrics)
+            throws IOException, JsonProcessingException {
         final File synLogFile = new File(synDir, synLog);
         Files.move(new File(synDir, "xflow.log"), synLogFile);
+        final XilinxReportParser parser = new XilinxReportParser();
+        parser.parseFile(synLogFile);
+        metrics.merge(parser.getMetrics());
         final ObjectWriter writer = JSONHelper.getWriter();
         SynthesisInvoker.reportFile(reporter, info, writer, synLogFile, synLog);
     }